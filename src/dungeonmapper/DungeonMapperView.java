@@ -19,16 +19,46 @@
  package dungeonmapper;
 
 import dungeonmapper.map.Map;
+import dungeonmapper.map.MapProgress;
+import dungeonmapper.render.MapExporter;
+import dungeonmapper.render.MapRenderer;
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.EventObject;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jdesktop.application.Action;
+import org.jdesktop.application.Application;
+import org.jdesktop.application.ResourceMap;
 import org.jdesktop.application.SingleFrameApplication;
 import org.jdesktop.application.FrameView;
+import org.jdesktop.application.Task;
+import org.jdesktop.application.TaskMonitor;
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
 import javax.swing.JDialog;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
 /**
  * The application's main frame.
@@ -36,6 +66,7 @@ import javax.swing.JFrame;
 public class DungeonMapperView extends FrameView {
 
     MapView mapview;
+    MiniMapView minimap;
     File activeFile = null;
     String baseName;
 
@@ -48,7 +79,18 @@ public class DungeonMapperView extends FrameView {
         fc.setFileFilter(new DungeonFileFilter());
 
         mapview = new MapView(new Map(64, 64, 5));
-        setComponent(mapview);
+        minimap = new MiniMapView(mapview);
+        JPanel viewPanel = new JPanel(new BorderLayout());
+        viewPanel.add(mapview.getStatusLine(), BorderLayout.NORTH);
+        viewPanel.add(mapview, BorderLayout.CENTER);
+        JPanel mapPanel = new JPanel(new BorderLayout());
+        mapPanel.add(viewPanel, BorderLayout.CENTER);
+        mapPanel.add(minimap, BorderLayout.EAST);
+        setComponent(mapPanel);
+
+        initStatusBar();
+        initAutosave();
+        initExitListener();
 
         org.jdesktop.application.ResourceMap appResources = app.
                     getContext().getResourceMap(DungeonMapperApp.class);
@@ -56,6 +98,229 @@ public class DungeonMapperView extends FrameView {
         updateTitle("(Untitled)", false);
     }
 
+    /**
+     * Sets up the status bar showing progress of background tasks, driven
+     * by the application's TaskMonitor
+     */
+    private void initStatusBar()
+    {
+        ResourceMap resourceMap = getResourceMap();
+        javax.swing.ActionMap actionMap = getContext().getActionMap(DungeonMapperView.class, this);
+
+        statusMessageLabel = new JLabel();
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setVisible(false);
+        cancelButton = new JButton(actionMap.get("cancelTask"));
+        cancelButton.setVisible(false);
+
+        JPanel progressPanel = new JPanel(new BorderLayout(4, 0));
+        progressPanel.add(progressBar, BorderLayout.CENTER);
+        progressPanel.add(cancelButton, BorderLayout.EAST);
+
+        JPanel statusPanel = new JPanel(new BorderLayout(4, 0));
+        statusPanel.setBorder(BorderFactory.createEmptyBorder(2, 4, 2, 4));
+        statusPanel.add(statusMessageLabel, BorderLayout.CENTER);
+        statusPanel.add(progressPanel, BorderLayout.EAST);
+        setStatusBar(statusPanel);
+
+        taskMonitor = new TaskMonitor(getApplication().getContext());
+        taskMonitor.addPropertyChangeListener(new PropertyChangeListener()
+        {
+            public void propertyChange(PropertyChangeEvent evt)
+            {
+                String propertyName = evt.getPropertyName();
+                if ("started".equals(propertyName))
+                {
+                    progressBar.setVisible(true);
+                    progressBar.setIndeterminate(true);
+                    Task task = taskMonitor.getForegroundTask();
+                    cancelButton.setVisible(task != null && task.getUserCanCancel());
+                }
+                else if ("done".equals(propertyName))
+                {
+                    progressBar.setVisible(false);
+                    progressBar.setValue(0);
+                    cancelButton.setVisible(false);
+                    statusMessageLabel.setText("");
+                }
+                else if ("message".equals(propertyName))
+                {
+                    String text = (String)(evt.getNewValue());
+                    statusMessageLabel.setText((text == null) ? "" : text);
+                }
+                else if ("progress".equals(propertyName))
+                {
+                    int value = (Integer)(evt.getNewValue());
+                    progressBar.setIndeterminate(false);
+                    progressBar.setValue(value);
+                }
+            }
+        });
+
+        statusMessageLabel.setText(resourceMap.getString("status.ready"));
+    }
+
+    /**
+     * Starts the autosave timer. Every few seconds a snapshot of a modified
+     * map that has a file is taken on the EDT and saved incrementally (see
+     * Map.saveIncremental) on the save thread. Autosaves wait while a Save
+     * or Save As is pending, and skip files that are not in the current
+     * format.
+     */
+    private void initAutosave()
+    {
+        Integer seconds = getResourceMap().getInteger("autosave.interval");
+        int interval = (seconds == null ? 10 : seconds) * 1000;
+
+        autosaveTimer = new Timer(interval, new ActionListener()
+        {
+            public void actionPerformed(ActionEvent e)
+            {
+                autosave();
+            }
+        });
+        autosaveTimer.start();
+    }
+
+    private void autosave()
+    {
+        final Map map = mapview.getMap();
+        final File file = activeFile;
+        // An autosave queued behind a pending save would append to the
+        // journal of the checkpoint that save is about to replace
+        if (file == null || autosaving || pendingSaves > 0 || !map.isModified())
+            return;
+
+        final Map snapshot = map.snapshot();
+        autosaving = true;
+        saveExecutor.execute(new Runnable()
+        {
+            public void run()
+            {
+                Exception error = null;
+                boolean current = false;
+                try
+                {
+                    // Files in an older format are left for an explicit
+                    // save to convert, rather than rewritten behind the
+                    // user's back
+                    current = Map.getFileVersion(file) == Map.FILE_VERSION;
+                    if (current)
+                        snapshot.saveIncremental(file);
+                }
+                catch (Exception ex)
+                {
+                    error = ex;
+                }
+
+                final Exception failure = error;
+                final boolean saved = current;
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    public void run()
+                    {
+                        autosaving = false;
+                        if (failure == null && saved)
+                            map.markSaved(snapshot, file);
+                        else if (failure == null)
+                            statusMessageLabel.setText(getResourceMap().getString(
+                                    "autosave.oldFormat", file.getName()));
+                        else
+                        {
+                            Logger.getLogger(DungeonMapperView.class.getName()).log(Level.WARNING, null, failure);
+                            statusMessageLabel.setText(getResourceMap().getString(
+                                    "autosave.error", file.getName(), failure.getLocalizedMessage()));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Keeps the application from quitting while a save is running, and
+     * autosaves the map one last time (or asks before losing changes that
+     * cannot be autosaved) before it does
+     */
+    private void initExitListener()
+    {
+        getApplication().addExitListener(new Application.ExitListener()
+        {
+            public boolean canExit(EventObject event)
+            {
+                ResourceMap resourceMap = getResourceMap();
+                JFrame mainFrame = DungeonMapperApp.getApplication().getMainFrame();
+                if (pendingSaves > 0)
+                {
+                    JOptionPane.showMessageDialog(mainFrame,
+                            resourceMap.getString("exit.saving"),
+                            resourceMap.getString("exit.title"),
+                            JOptionPane.INFORMATION_MESSAGE);
+                    return false;
+                }
+
+                Map map = mapview.getMap();
+                if (!map.isModified() || (activeFile != null && saveBeforeExit(map, activeFile)))
+                    return true;
+
+                return JOptionPane.showConfirmDialog(mainFrame,
+                        resourceMap.getString("exit.unsaved"),
+                        resourceMap.getString("exit.title"),
+                        JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION;
+            }
+
+            public void willExit(EventObject event)
+            {
+                autosaveTimer.stop();
+                saveExecutor.shutdown();
+                try
+                {
+                    saveExecutor.awaitTermination(EXIT_TIMEOUT, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    /**
+     * Autosaves the map on the save thread and waits for it, after any
+     * autosave already running
+     * @return true if the map was saved; false if the file is in an older
+     *         format or the save failed, which has been reported
+     */
+    private boolean saveBeforeExit(Map map, final File file)
+    {
+        final Map snapshot = map.snapshot();
+        Future<Boolean> save = saveExecutor.submit(new Callable<Boolean>()
+        {
+            public Boolean call() throws IOException
+            {
+                if (Map.getFileVersion(file) != Map.FILE_VERSION)
+                    return false;
+                snapshot.saveIncremental(file);
+                return true;
+            }
+        });
+
+        try
+        {
+            return save.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (ExecutionException ex)
+        {
+            showError("saveMap.error", file, ex.getCause());
+            return false;
+        }
+    }
+
     public void updateTitle(String file, boolean dirty)
     {
         /*JFrame mainFrame = DungeonMapperApp.getApplication().getMainFrame();
@@ -92,6 +357,8 @@ public class DungeonMapperView extends FrameView {
         openMenuItem = new javax.swing.JMenuItem();
         saveMenuItem = new javax.swing.JMenuItem();
         saveAsMenuItem = new javax.swing.JMenuItem();
+        exportImageMenuItem = new javax.swing.JMenuItem();
+        exportAllFloorsMenuItem = new javax.swing.JMenuItem();
         jSeparator1 = new javax.swing.JSeparator();
         javax.swing.JMenuItem exitMenuItem = new javax.swing.JMenuItem();
         javax.swing.JMenu helpMenu = new javax.swing.JMenu();
@@ -123,6 +390,14 @@ public class DungeonMapperView extends FrameView {
         saveAsMenuItem.setName("saveAsMenuItem"); // NOI18N
         fileMenu.add(saveAsMenuItem);
 
+        exportImageMenuItem.setAction(actionMap.get("exportImage")); // NOI18N
+        exportImageMenuItem.setName("exportImageMenuItem"); // NOI18N
+        fileMenu.add(exportImageMenuItem);
+
+        exportAllFloorsMenuItem.setAction(actionMap.get("exportAllFloors")); // NOI18N
+        exportAllFloorsMenuItem.setName("exportAllFloorsMenuItem"); // NOI18N
+        fileMenu.add(exportAllFloorsMenuItem);
+
         jSeparator1.setName("jSeparator1"); // NOI18N
         fileMenu.add(jSeparator1);
 
@@ -163,66 +438,301 @@ public class DungeonMapperView extends FrameView {
         newMap.dispose();
     }
 
-    @Action
-    public void openMap()
+    @Action(block = Task.BlockingScope.ACTION)
+    public Task openMap()
     {
         JFrame mainFrame = DungeonMapperApp.getApplication().getMainFrame();
 
         if (fc.showOpenDialog(mainFrame) == JFileChooser.APPROVE_OPTION)
-        {
-            try
-            {
-                Map newMap = Map.loadMap(fc.getSelectedFile());
-                mapview.setMap(newMap);
-                activeFile = fc.getSelectedFile();
-                updateTitle(activeFile.getName(), false);
-            }
-            catch (Exception ex)
-            {
-                Logger.getLogger(DungeonMapperView.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        }
+            return new LoadMapTask(fc.getSelectedFile());
+
+        return null;
     }
 
-    @Action
-    public void saveMap()
+    @Action(block = Task.BlockingScope.ACTION)
+    public Task saveMap()
     {
         if (activeFile == null)
-            saveMapAs();
+            return saveMapAs();
         else
-        {
-            try
-            {
-                mapview.getMap().saveMap(activeFile);
-            }
-            catch (IOException ex)
-            {
-                Logger.getLogger(DungeonMapperView.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        }
+            return createSaveTask(activeFile);
     }
 
-    @Action
-    public void saveMapAs()
+    @Action(block = Task.BlockingScope.ACTION)
+    public Task saveMapAs()
     {
         JFrame mainFrame = DungeonMapperApp.getApplication().getMainFrame();
 
         if (fc.showSaveDialog(mainFrame) == JFileChooser.APPROVE_OPTION)
+            return createSaveTask(fc.getSelectedFile());
+
+        return null;
+    }
+
+    /**
+     * Exports the current floor as a PNG image at the current zoom level,
+     * or at the smallest sprite size when zoomed out further
+     */
+    @Action(block = Task.BlockingScope.ACTION)
+    public Task exportImage()
+    {
+        File file = choosePngFile();
+        if (file == null)
+            return null;
+        return createExportTask(file, mapview.getMap().getCursorZ());
+    }
+
+    /**
+     * Exports every floor as its own PNG image, numbered after the name
+     * chosen
+     */
+    @Action(block = Task.BlockingScope.ACTION)
+    public Task exportAllFloors()
+    {
+        File file = choosePngFile();
+        if (file == null)
+            return null;
+        return createExportTask(file, -1);
+    }
+
+    private File choosePngFile()
+    {
+        JFrame mainFrame = DungeonMapperApp.getApplication().getMainFrame();
+
+        if (pngChooser.showSaveDialog(mainFrame) != JFileChooser.APPROVE_OPTION)
+            return null;
+
+        File file = pngChooser.getSelectedFile();
+        if (!file.getName().toLowerCase().endsWith(".png"))
+            file = new File(file.getParentFile(), file.getName() + ".png");
+        return file;
+    }
+
+    private Task createExportTask(File file, int floor)
+    {
+        int scale = Math.max(mapview.getScale(), MapRenderer.SPRITE_SCALE);
+        return new ExportTask(mapview.getMap().snapshot(), floor, scale, file);
+    }
+
+    @Action
+    public void cancelTask()
+    {
+        Task task = taskMonitor.getForegroundTask();
+        if (task != null && task.getUserCanCancel())
+            task.cancel(true);
+    }
+
+    /**
+     * Takes a snapshot of the current map on the EDT and returns a task to
+     * save it in the background, so editing can go on during the save
+     */
+    private Task createSaveTask(File file)
+    {
+        Map map = mapview.getMap();
+        return new SaveMapTask(map, map.snapshot(), file);
+    }
+
+    private JFileChooser createPngChooser()
+    {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileFilter(new FileNameExtensionFilter(
+                getResourceMap().getString("exportImage.filter"), "png"));
+        return chooser;
+    }
+
+    private void showError(String messageKey, File file, Throwable cause)
+    {
+        Logger.getLogger(DungeonMapperView.class.getName()).log(Level.SEVERE, null, cause);
+
+        ResourceMap resourceMap = getResourceMap();
+        String detail = cause.getLocalizedMessage();
+        if (detail == null)
+            detail = cause.toString();
+
+        JOptionPane.showMessageDialog(DungeonMapperApp.getApplication().getMainFrame(),
+                resourceMap.getString(messageKey, file.getName(), detail),
+                resourceMap.getString("error.title"),
+                JOptionPane.ERROR_MESSAGE);
+    }
+
+    /**
+     * Reports a floor of the open map that could not be read from disk
+     */
+    void showFloorError(IOException cause)
+    {
+        showError("loadFloor.error", activeFile, cause);
+    }
+
+    /**
+     * Passes map I/O progress on to a task, and stops the I/O once the task
+     * has been cancelled
+     */
+    private static abstract class MapTask<T> extends Task<T, Void> implements MapProgress
+    {
+        MapTask(org.jdesktop.application.Application app)
+        {
+            super(app);
+        }
+
+        public void update(int done, int total) throws InterruptedIOException
+        {
+            if (isCancelled())
+                throw new InterruptedIOException();
+            setProgress(done, 0, total);
+        }
+    }
+
+    private class LoadMapTask extends MapTask<Map>
+    {
+        private final File file;
+
+        LoadMapTask(File file)
         {
+            super(DungeonMapperApp.getApplication());
+            this.file = file;
+            setMessage(DungeonMapperView.this.getResourceMap().getString(
+                    "openMap.message", file.getName()));
+        }
+
+        @Override
+        protected Map doInBackground() throws IOException
+        {
+            return Map.loadMap(file, this);
+        }
+
+        @Override
+        protected void succeeded(Map newMap)
+        {
+            mapview.setMap(newMap);
+            activeFile = file;
+            updateTitle(activeFile.getName(), false);
+        }
+
+        @Override
+        protected void failed(Throwable cause)
+        {
+            showError("openMap.error", file, cause);
+        }
+    }
+
+    private class SaveMapTask extends MapTask<Void>
+    {
+        private final Map map;
+        private final Map snapshot;
+        private final File file;
+
+        SaveMapTask(Map map, Map snapshot, File file)
+        {
+            super(DungeonMapperApp.getApplication());
+            this.map = map;
+            this.snapshot = snapshot;
+            this.file = file;
+            setMessage(DungeonMapperView.this.getResourceMap().getString(
+                    "saveMap.message", file.getName()));
+            pendingSaves++;
+        }
+
+        @Override
+        protected Void doInBackground() throws Exception
+        {
+            Future<Void> save = saveExecutor.submit(new Callable<Void>()
+            {
+                public Void call() throws IOException
+                {
+                    snapshot.saveMap(file, SaveMapTask.this);
+                    return null;
+                }
+            });
+
             try
             {
-                mapview.getMap().saveMap(fc.getSelectedFile());
-                activeFile = fc.getSelectedFile();
-                updateTitle(activeFile.getName(), false);
+                save.get();
             }
-            catch (IOException ex)
+            catch (InterruptedException ex)
             {
-                Logger.getLogger(DungeonMapperView.class.getName()).log(Level.SEVERE, null, ex);
+                // Cancelled; the save stops at its next progress update and
+                // leaves the existing file untouched
+                save.cancel(true);
+                throw ex;
             }
+            catch (ExecutionException ex)
+            {
+                if (ex.getCause() instanceof Exception)
+                    throw (Exception)ex.getCause();
+                throw ex;
+            }
+            return null;
+        }
+
+        @Override
+        protected void succeeded(Void result)
+        {
+            map.markSaved(snapshot, file);
+            if (mapview.getMap() == map)
+            {
+                activeFile = file;
+                updateTitle(activeFile.getName(), false);
+                mapview.getStatusLine().repaint();
+            }
+        }
+
+        @Override
+        protected void failed(Throwable cause)
+        {
+            showError("saveMap.error", file, cause);
+        }
+
+        @Override
+        protected void finished()
+        {
+            pendingSaves--;
+        }
+    }
+
+    /**
+     * Exports a snapshot of the map, so editing can go on meanwhile
+     */
+    private class ExportTask extends MapTask<Void>
+    {
+        private final Map snapshot;
+        private final int floor;
+        private final int scale;
+        private final File file;
+
+        /**
+         * @param floor floor to export, or -1 for all floors
+         */
+        ExportTask(Map snapshot, int floor, int scale, File file)
+        {
+            super(DungeonMapperApp.getApplication());
+            this.snapshot = snapshot;
+            this.floor = floor;
+            this.scale = scale;
+            this.file = file;
+            setMessage(DungeonMapperView.this.getResourceMap().getString(
+                    "exportImage.message", file.getName()));
+        }
+
+        @Override
+        protected Void doInBackground() throws IOException
+        {
+            if (floor < 0)
+                MapExporter.exportAllFloors(snapshot, scale, file, this);
+            else
+                MapExporter.exportFloor(snapshot, floor, scale, file, this);
+            return null;
+        }
+
+        @Override
+        protected void failed(Throwable cause)
+        {
+            showError("exportImage.error", file, cause);
         }
     }
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JMenuItem exportAllFloorsMenuItem;
+    private javax.swing.JMenuItem exportImageMenuItem;
     private javax.swing.JSeparator jSeparator1;
     private javax.swing.JMenuBar menuBar;
     private javax.swing.JMenuItem newMenuItem;
@@ -233,5 +743,28 @@ public class DungeonMapperView extends FrameView {
 
     private JDialog aboutBox;
     private final JFileChooser fc = new JFileChooser();
+    private final JFileChooser pngChooser = createPngChooser();
+
+    // Seconds to wait for the save thread when the application exits
+    private static final int EXIT_TIMEOUT = 60;
+
+    // All saves run on this one thread, in the order their snapshots were
+    // taken, so an older snapshot can never overwrite a newer one
+    private final ExecutorService saveExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+        public Thread newThread(Runnable r)
+        {
+            return new Thread(r, "Map saver");
+        }
+    });
+    private Timer autosaveTimer;
+    private boolean autosaving = false;
+    // Save and Save As tasks created and not yet finished
+    private int pendingSaves = 0;
+
+    private JLabel statusMessageLabel;
+    private JProgressBar progressBar;
+    private JButton cancelButton;
+    private TaskMonitor taskMonitor;
 
 }
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper;
+
+import dungeonmapper.map.Map;
+import dungeonmapper.map.Tile;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Command line tool that validates, upgrades or converts every .dungeon
+ * file in a directory tree, without starting the user interface.
+ *
+ * Maps are processed in parallel by a fixed number of workers, each
+ * loading and saving one map at a time with Map.loadMap and saveMap, so
+ * memory use is bounded by the number of workers. A line is printed for
+ * each map as it finishes, and a summary of the time taken and throughput
+ * at the end.
+ */
+public class MapBatch
+{
+    private static final String USAGE =
+            "Usage: java -cp DungeonMapper.jar dungeonmapper.MapBatch [-j <workers>] <command> <directory> [<output directory>]\n" +
+            "\n" +
+            "Commands:\n" +
+            "  validate    read every map completely and check its cells\n" +
+            "  upgrade     rewrite legacy text maps in the current format in place\n" +
+            "  recompress  rewrite every map in place in the current format\n" +
+            "  convert     write every map to the output directory in the current format\n" +
+            "  legacy      write every map to the output directory in the old text format\n" +
+            "\n" +
+            "Options:\n" +
+            "  -j <workers>  number of maps processed at once (default: number of cores)";
+
+    private static final double MB = 1024.0 * 1024.0;
+
+    private enum Command
+    {
+        VALIDATE, UPGRADE, RECOMPRESS, CONVERT, LEGACY;
+
+        boolean hasOutput()
+        {
+            return this == CONVERT || this == LEGACY;
+        }
+    }
+
+    /**
+     * What happened to one map
+     */
+    private static final class Result
+    {
+        final File file;
+        int version;
+        long bytesIn;
+        long bytesOut;
+        long nanos;
+        boolean skipped;
+        String error;
+
+        Result(File file)
+        {
+            this.file = file;
+        }
+    }
+
+    private final Command command;
+    private final Path root;
+    private final Path output;
+
+    private MapBatch(Command command, Path root, Path output)
+    {
+        this.command = command;
+        this.root = root;
+        this.output = output;
+    }
+
+    public static void main(String[] args)
+    {
+        int workers = Runtime.getRuntime().availableProcessors();
+        int arg = 0;
+
+        if (args.length >= 2 && args[0].equals("-j"))
+        {
+            try
+            {
+                workers = Integer.parseInt(args[1]);
+            }
+            catch (NumberFormatException ex)
+            {
+                workers = 0;
+            }
+            arg = 2;
+        }
+
+        Command command = null;
+        if (args.length > arg)
+        {
+            try
+            {
+                command = Command.valueOf(args[arg].toUpperCase());
+            }
+            catch (IllegalArgumentException ex)
+            {
+                command = null;
+            }
+        }
+
+        int expected = arg + (command != null && command.hasOutput() ? 3 : 2);
+        if (command == null || workers < 1 || args.length != expected)
+        {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        Path root = new File(args[arg + 1]).toPath();
+        Path output = command.hasOutput() ? new File(args[arg + 2]).toPath() : null;
+        if (!Files.isDirectory(root))
+        {
+            System.err.println("Not a directory: " + root);
+            System.exit(2);
+        }
+
+        try
+        {
+            boolean ok = new MapBatch(command, root, output).run(workers);
+            System.exit(ok ? 0 : 1);
+        }
+        catch (IOException ex)
+        {
+            System.err.println("Error: " + ex.getLocalizedMessage());
+            System.exit(1);
+        }
+        catch (InterruptedException ex)
+        {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Processes every map under the root directory
+     * @return true if no map failed
+     */
+    private boolean run(int workers) throws IOException, InterruptedException
+    {
+        List<File> files = findMaps();
+        System.out.printf("%s: %d maps in %s, %d workers%n",
+                command.name().toLowerCase(), files.size(), root, workers);
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "Map batch worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        CompletionService<Result> results = new ExecutorCompletionService<Result>(pool);
+
+        long start = System.nanoTime();
+        for (final File file : files)
+        {
+            results.submit(new Callable<Result>()
+            {
+                public Result call()
+                {
+                    return process(file);
+                }
+            });
+        }
+
+        int failed = 0;
+        int skipped = 0;
+        long bytesIn = 0;
+        long bytesOut = 0;
+        long busyNanos = 0;
+        try
+        {
+            for (int i = 0; i < files.size(); i++)
+            {
+                Result result;
+                try
+                {
+                    result = results.take().get();
+                }
+                catch (ExecutionException ex)
+                {
+                    // process() catches everything it can; this is a bug
+                    throw new IllegalStateException(ex.getCause());
+                }
+
+                report(result);
+                if (result.error != null)
+                    failed++;
+                else if (result.skipped)
+                    skipped++;
+                bytesIn += result.bytesIn;
+                bytesOut += result.bytesOut;
+                busyNanos += result.nanos;
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d maps, %d failed, %d skipped in %.2f s%n",
+                files.size(), failed, skipped, seconds);
+        System.out.printf("read %.1f MB, wrote %.1f MB: %.1f MB/s, %.1f maps/s%n",
+                bytesIn / MB, bytesOut / MB, bytesIn / MB / Math.max(seconds, 1e-9),
+                files.size() / Math.max(seconds, 1e-9));
+        System.out.printf("%.2f s spent on maps, %.1fx parallel%n",
+                busyNanos / 1e9, busyNanos / 1e9 / Math.max(seconds, 1e-9));
+
+        return failed == 0;
+    }
+
+    /**
+     * Lists the .dungeon files under the root directory in a stable order
+     */
+    private List<File> findMaps() throws IOException
+    {
+        final List<File> files = new ArrayList<File>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs)
+            {
+                File file = path.toFile();
+                if (attrs.isRegularFile() && "dungeon".equals(DungeonFileFilter.getExtension(file)))
+                    files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException ex)
+            {
+                System.err.println("Cannot read " + path + ": " + ex.getLocalizedMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Runs the command on one map, catching any error so that one bad map
+     * does not stop the batch
+     */
+    private Result process(File file)
+    {
+        Result result = new Result(file);
+        long start = System.nanoTime();
+        try
+        {
+            result.bytesIn = file.length();
+            result.version = Map.getFileVersion(file);
+
+            switch (command)
+            {
+                case VALIDATE:
+                    validate(file);
+                    break;
+
+                case UPGRADE:
+                    if (result.version == Map.FILE_VERSION)
+                    {
+                        result.skipped = true;
+                        break;
+                    }
+                    rewrite(file, file, false);
+                    result.bytesOut = file.length();
+                    break;
+
+                case RECOMPRESS:
+                    rewrite(file, file, false);
+                    result.bytesOut = file.length();
+                    break;
+
+                case CONVERT:
+                case LEGACY:
+                    File target = output.resolve(root.relativize(file.toPath())).toFile();
+                    rewrite(file, target, command == Command.LEGACY);
+                    result.bytesOut = target.length();
+                    break;
+            }
+        }
+        catch (Exception ex)
+        {
+            result.error = ex.getLocalizedMessage() != null ? ex.getLocalizedMessage() : ex.toString();
+        }
+        catch (OutOfMemoryError ex)
+        {
+            result.error = "Out of memory; try fewer workers with -j";
+        }
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Reads every floor of a map and checks that each cell only uses known
+     * floor, wall and glyph types
+     */
+    private static void validate(File file) throws IOException
+    {
+        Map map = Map.loadMap(file);
+        map.loadAllFloors();
+
+        long invalid = 0;
+        for (int z = 0; z < map.getFloors(); z++)
+            for (int y = 0; y < map.getHeight(); y++)
+                for (int x = 0; x < map.getWidth(); x++)
+                    if (!isValidCell(map.getCell(x, y, z)))
+                        invalid++;
+
+        if (invalid > 0)
+            throw new IOException(invalid + " cells with unknown floor, wall or glyph types");
+    }
+
+    private static boolean isValidCell(int cell)
+    {
+        return Tile.getFloor(cell) < Map.floorTypes &&
+               Tile.getGlyph(cell) < Map.glyphTypes &&
+               isValidWall(Tile.getHorizWall(cell)) &&
+               isValidWall(Tile.getVertWall(cell));
+    }
+
+    /**
+     * Normal walls, flippable walls, and flippable walls flipped
+     */
+    private static boolean isValidWall(int wall)
+    {
+        return wall < Map.normalWallTypes ||
+               (wall >= 20 && wall < 20 + Map.flipWallTypes) ||
+               (wall >= 40 && wall < 40 + Map.flipWallTypes);
+    }
+
+    private static void rewrite(File source, File target, boolean legacy) throws IOException
+    {
+        Map map = Map.loadMap(source);
+
+        File dir = target.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create directory " + dir);
+
+        if (legacy)
+            map.saveLegacyMap(target);
+        else
+            map.saveMap(target);
+    }
+
+    private void report(Result result)
+    {
+        Path path = root.relativize(result.file.toPath());
+        if (result.error != null)
+        {
+            System.out.printf("FAILED %8.1f ms  %s: %s%n",
+                    result.nanos / 1e6, path, result.error);
+            return;
+        }
+
+        String version = result.version == Map.TEXT_FILE_VERSION ? "text" : "v" + result.version;
+        if (result.skipped)
+            System.out.printf("skip   %8.1f ms  %s (%s)%n", result.nanos / 1e6, path, version);
+        else if (command == Command.VALIDATE)
+            System.out.printf("ok     %8.1f ms  %s (%s, %.1f MB)%n",
+                    result.nanos / 1e6, path, version, result.bytesIn / MB);
+        else
+            System.out.printf("ok     %8.1f ms  %s (%s, %.1f MB -> %.1f MB)%n",
+                    result.nanos / 1e6, path, version, result.bytesIn / MB, result.bytesOut / MB);
+    }
+}
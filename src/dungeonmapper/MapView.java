@@ -20,18 +20,23 @@ package dungeonmapper;
 
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.Toolkit;
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import dungeonmapper.map.Map;
-import dungeonmapper.map.Tile;
+import dungeonmapper.map.MapEvent;
+import dungeonmapper.map.MapListener;
+import dungeonmapper.render.MapRenderer;
+import dungeonmapper.render.SpriteSet;
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Rectangle;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
+import java.io.IOException;
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
 
 /**
  * View of a specified dungeon map
@@ -39,27 +44,68 @@ import java.awt.event.KeyEvent;
  */
 public class MapView extends javax.swing.JPanel
 {
+    // Translucent fill and outline of the selected cells
+    private static final Color SELECTION_FILL = new Color(64, 128, 255, 64);
+    private static final Color SELECTION_OUTLINE = new Color(32, 80, 220);
 
-    // Icons for the map
-    private final BufferedImage[] floors = new BufferedImage[Map.floorTypes];
-    private final BufferedImage[] walls = new BufferedImage[60];
-    private final BufferedImage[] horizwalls = new BufferedImage[60];
-    private final BufferedImage[] glyphs = new BufferedImage[Map.glyphTypes];
-    private BufferedImage cursor;
+    // Icons for the map at the current scale
+    private SpriteSet sprites;
 
+    // Pixels per cell; below MapRenderer.SPRITE_SCALE cells are drawn as
+    // coloured blocks, and at 1 the mipmap level shrinks the map further
     private int scale = 16;
+    private int level = 0;
     private Map map;
 
     // Current scrolling position on the map
     private int scrollX = -1;
     private int scrollY = -1;
-    private boolean fullPaint = true;
+
+    // Size of the map area in cells, as of the last scroll update
+    private int drawWidth;
+    private int drawHeight;
+
+    // Where the cursor was last drawn, so that moving it repaints both cells
+    private int paintedCursorX = -1;
+    private int paintedCursorY = -1;
+    private int paintedFloor = -1;
+
+    // Selected cells as last drawn, or null
+    private Rectangle paintedSelection;
+
+    // Cells changed since the back buffer was last updated, or null
+    private Rectangle dirtyCells;
+
+    // Status line font and palette rows for the current scale
+    private Font statusFont;
+    private BufferedImage paletteImage;
+
+    // Map name and cursor position, shown above the view
+    private final StatusLine statusLine = new StatusLine();
+
+    // Rendered map area, shifted with copyArea when the view scrolls
+    private BufferedImage backBuffer;
+    private int bufferScrollX;
+    private int bufferScrollY;
+    private int bufferScale;
+    private int bufferFloor;
+
+    // Draws the map area, keeping pre-rendered chunks and zoomed out rasters
+    private final MapRenderer renderer;
+
+    // Map area below icon size, drawn by the renderer
+    private BufferedImage lodImage;
+
+    private final MapHandler mapHandler = new MapHandler();
 
     /** Creates new form MapView */
     public MapView(Map map)
     {
         this.map = map;
-        load_and_scale_images();
+        map.addMapListener(mapHandler);
+        renderer = new MapRenderer(map);
+        sprites = SpriteSet.get(scale);
+        SpriteSet.prewarm(8, 32, 64);
 
         addKeyListener(new TAdapter());
         setFocusable(true);
@@ -78,151 +124,253 @@ public class MapView extends javax.swing.JPanel
         @Override
         public void keyPressed(KeyEvent e)
         {
-            map.keyPressed(e);
+            // Edits, cursor and palette changes repaint through map events
+            try
+            {
+                map.keyPressed(e);
+            }
+            catch (IOException ex)
+            {
+                // The cursor is still on the floor it was on
+                showFloorError(ex);
+                return;
+            }
             switch (e.getKeyCode())
             {
-                // Floor changes. Not handled here, but tracked for re-painting:
-                case KeyEvent.VK_PAGE_UP:
-                case KeyEvent.VK_PAGE_DOWN:
-                    break;
                 // Plus (or equals without shift) will zoom in
                 case KeyEvent.VK_PLUS:
                 case KeyEvent.VK_EQUALS:
                 case KeyEvent.VK_ADD:
-                    if (scale < 64)
-                    {
-                        scale = scale * 2;
-                        load_and_scale_images();
-                    }
+                    if (level > 0)
+                        setScale(1, level - 1);
+                    else if (scale < 64)
+                        setScale(scale * 2, 0);
                     break;
 
                 // Minus will zoom out
                 case KeyEvent.VK_MINUS:
                 case KeyEvent.VK_SUBTRACT:
-                    if (scale > 8)
-                    {
-                        scale = scale / 2;
-                        load_and_scale_images();
-                    }
+                    if (scale > 1)
+                        setScale(scale / 2, 0);
+                    else if (level < MapRenderer.MAX_LEVEL)
+                        setScale(1, level + 1);
                     break;
 
-                // All other keys do not have global drawing effects
-                default:
-                    fullPaint = false;
+                // Show or hide the floors above and below
+                case KeyEvent.VK_G:
+                    renderer.setShowGhosts(!renderer.isShowGhosts());
+                    backBuffer = null;
+                    repaint();
+                    break;
             }
+        }
+    }
 
-            repaint();
+    /**
+     * Turns map changes into repaints of just the affected parts of the view
+     */
+    private class MapHandler implements MapListener
+    {
+        public void cellsChanged(MapEvent e)
+        {
+            renderer.cellsChanged(e.getFloor(), e.getX(), e.getY(),
+                    e.getWidth(), e.getHeight());
+
+            int floor = map.getCursorZ();
+            if (e.getFloor() != floor &&
+                !(renderer.isShowGhosts() && Math.abs(e.getFloor() - floor) == 1))
+                return;
+
+            // Walls are drawn half a cell over the right and bottom neighbours
+            Rectangle cells = new Rectangle(e.getX(), e.getY(),
+                    e.getWidth() + 1, e.getHeight() + 1);
+            if (dirtyCells == null)
+                dirtyCells = cells;
+            else
+                dirtyCells.add(cells);
+
+            repaint(cellBounds(cells.x, cells.y, cells.width, cells.height));
+        }
+
+        public void cursorMoved(MapEvent e)
+        {
+            statusLine.repaint();
+
+            if (e.getFloor() != paintedFloor || updateScroll())
+            {
+                repaint();
+                return;
+            }
+
+            // Zoomed out, the cursor is outlined around its cell
+            Rectangle bounds = cellBounds(paintedCursorX, paintedCursorY, 1, 1);
+            bounds.grow(1, 1);
+            repaint(bounds);
+            bounds = cellBounds(e.getX(), e.getY(), 1, 1);
+            bounds.grow(1, 1);
+            repaint(bounds);
+        }
+
+        public void paletteChanged(MapEvent e)
+        {
+            repaint(0, 0, getWidth(), getPaletteHeight());
+        }
+
+        public void selectionChanged(MapEvent e)
+        {
+            // The outline is drawn inside the selected cells
+            if (paintedSelection != null)
+                repaint(cellBounds(paintedSelection.x, paintedSelection.y,
+                        paintedSelection.width, paintedSelection.height));
+            if (e.getFloor() == map.getCursorZ())
+                repaint(cellBounds(e.getX(), e.getY(), e.getWidth(), e.getHeight()));
         }
     }
 
-    public Map getMap()
+    /**
+     * Gets the area of the view showing the given cells at the current
+     * scroll position
+     */
+    private Rectangle cellBounds(int x, int y, int width, int height)
     {
-        return map;
+        int left = toPixels(x - scrollX);
+        int top = toPixels(y - scrollY);
+        return new Rectangle(left, top + getPaletteHeight(),
+                toPixelsCeil(x + width - scrollX) - left,
+                toPixelsCeil(y + height - scrollY) - top);
     }
 
-    public void setMap(Map newMap)
+    /**
+     * Converts a number of cells to pixels at the current zoom, rounding
+     * down when the map is shrunk below one pixel per cell
+     */
+    private int toPixels(int cells)
     {
-        map = newMap;
-        load_and_scale_images();
-        repaint();
+        return level == 0 ? cells * scale : cells >> level;
     }
 
+    private int toPixelsCeil(int cells)
+    {
+        return level == 0 ? cells * scale : -(-cells >> level);
+    }
 
+    private int toCells(int pixels)
+    {
+        return level == 0 ? pixels / scale : pixels << level;
+    }
 
-    private BufferedImage load_and_scale_image(Image original, int degrees)
+    /**
+     * Gets the size of the status line and palette rows, which do not
+     * shrink along with the map below the smallest icon size
+     */
+    private int getStatusScale()
     {
-        // Assume square images
-        int origsize = original.getWidth(null);
-        float multiple = (float)scale/origsize;
-
-        BufferedImage Working = new BufferedImage(origsize, origsize,
-                BufferedImage.TYPE_4BYTE_ABGR);
-        BufferedImage Output = new BufferedImage(scale, scale, BufferedImage.TYPE_4BYTE_ABGR);
-
-        // Copy the original into the working:
-        Graphics2D tempGraphics = Working.createGraphics();
-        tempGraphics.drawImage(original, 0, 0, null);
-        tempGraphics.dispose();
-
-        // Do the transformation(s)
-        AffineTransform transform = new AffineTransform();
-        if (degrees != 0)
-            transform.rotate(Math.toRadians(degrees), scale / 2, scale /2);
-        if (origsize != scale)
-            transform.scale(multiple, multiple);
-        AffineTransformOp op = new AffineTransformOp(transform, AffineTransformOp.TYPE_BILINEAR);
-
-        op.filter(Working, Output);
-        return Output;
+        return Math.max(scale, MapRenderer.SPRITE_SCALE);
     }
 
-    private void load_and_scale_images()
+    /**
+     * Gets the height of the floor, wall and glyph rows above the map area
+     */
+    private int getPaletteHeight()
     {
-        // Get our resource map
-        org.jdesktop.application.ResourceMap resourceMap =
-                org.jdesktop.application.Application.getInstance(dungeonmapper.DungeonMapperApp.class).
-                    getContext().getResourceMap(MapView.class);
+        return 3 * getStatusScale();
+    }
 
-        // Set up the initial "blank" images:
-        floors[0] = new BufferedImage(scale, scale, BufferedImage.TYPE_4BYTE_ABGR);
-        walls[0] = new BufferedImage(scale, scale, BufferedImage.TYPE_4BYTE_ABGR);
+    private void setScale(int newScale, int newLevel)
+    {
+        scale = newScale;
+        level = newLevel;
+        sprites = SpriteSet.get(getStatusScale());
 
-        // Load the floors:
-        for (int i = 0; i< floors.length; i++)
-            floors[i] = load_and_scale_image(resourceMap.getImageIcon("Mapping.floor[" + i + "]").getImage(), 0);
+        // Edits while zoomed out do not reach the back buffer
+        if (scale < MapRenderer.SPRITE_SCALE)
+            backBuffer = null;
 
-        // Load Normal Walls
-        for (int i = 0; i< Map.normalWallTypes; i++)
-        {
-            walls[i] = load_and_scale_image(resourceMap.getImageIcon("Mapping.wall[" + i + "]").getImage(), 0);
-            horizwalls[i] = load_and_scale_image(resourceMap.getImageIcon("Mapping.wall[" + i + "]").getImage(), 90);
-        }
+        updateScroll();
+        repaint();
+        statusLine.revalidate();
+        statusLine.repaint();
+    }
 
-        // Load flippable Walls:
-        for (int i = 20; i< 20 + Map.flipWallTypes; i++)
-        {
-            walls[i] = load_and_scale_image(resourceMap.getImageIcon("Mapping.wall[" + i + "]").getImage(), 0);
-            horizwalls[i] = load_and_scale_image(resourceMap.getImageIcon("Mapping.wall[" + i + "]").getImage(), 90);
-            walls[i + 20] = load_and_scale_image(resourceMap.getImageIcon("Mapping.wall[" + i + "]").getImage(), 180);
-            horizwalls[i + 20] = load_and_scale_image(resourceMap.getImageIcon("Mapping.wall[" + i + "]").getImage(), 270);
-        }
+    public Map getMap()
+    {
+        return map;
+    }
 
-        // Load Glyphs
-        for (int i = 0; i< glyphs.length; i++)
-            glyphs[i] = load_and_scale_image(resourceMap.getImageIcon("Mapping.glyph[" + i + "]").getImage(), 0);
+    /**
+     * Gets the size of a cell in pixels at the current zoom level
+     */
+    public int getScale()
+    {
+        return scale;
+    }
 
+    /**
+     * Gets the renderer drawing the map area, whose zoomed out rasters the
+     * minimap shares
+     */
+    public MapRenderer getRenderer()
+    {
+        return renderer;
+    }
 
-        cursor = load_and_scale_image(resourceMap.getImageIcon("Mapping.cursor").getImage(), 0);
+    /**
+     * Gets the cells currently shown. Changes are announced as the
+     * "viewport" property.
+     */
+    public Rectangle getViewport()
+    {
+        return new Rectangle(scrollX, scrollY, drawWidth, drawHeight);
     }
 
-    private void drawStatus(Graphics2D g2d, int viewWidth)
+    public void setMap(Map newMap)
     {
-        g2d.setColor(Color.LIGHT_GRAY);
-        g2d.fillRect(0, 0, viewWidth, 4 * scale);
+        Map oldMap = map;
+        map.removeMapListener(mapHandler);
+        map = newMap;
+        map.addMapListener(mapHandler);
+        dirtyCells = null;
+        renderer.setMap(newMap);
+        backBuffer = null;
+        repaint();
+        statusLine.repaint();
+        firePropertyChange("map", oldMap, newMap);
+    }
 
-        int row = 0;
-        int i = 0;
 
-        // Info:
-        g2d.setColor(Color.BLACK);
 
-        Font statusFont = new Font("Dialog", Font.PLAIN, scale * 3 / 4);
-        g2d.setFont(statusFont);
-        g2d.drawString(String.format("%s : Floor %d / %d [X: %d / %d, Y: %d / %d]",
-                map.getName(), map.getCursorZ() + 1, map.getFloors(),
-                map.getCursorX() + 1, map.getWidth(),
-                map.getCursorY() + 1, map.getHeight()),
-                0, scale * 3 / 4);
+    /**
+     * Gets the line showing the map name and cursor position, which goes
+     * above the view. It is a separate component so that repainting it on
+     * cursor moves is not merged with the cursor cells into one area
+     * spanning the palette rows.
+     */
+    public JComponent getStatusLine()
+    {
+        return statusLine;
+    }
 
-        row++;
+    /**
+     * Gets the floor, wall and glyph rows of the palette, drawn once per
+     * scale; the selection cursors are drawn over it separately
+     */
+    private BufferedImage getPaletteImage()
+    {
+        int statusScale = getStatusScale();
+        if (paletteImage != null && paletteImage.getHeight() == 3 * statusScale)
+            return paletteImage;
+
+        int columns = Math.max(Math.max(Map.floorTypes, Map.glyphTypes),
+                Map.normalWallTypes + Map.flipWallTypes);
+        paletteImage = SpriteSet.createCompatibleImage(columns * statusScale, 3 * statusScale);
+        Graphics2D g2d = paletteImage.createGraphics();
+
+        int row = 0;
+        int i = 0;
 
         // Floors:
         for (i = 0; i< Map.floorTypes; i++)
-        {
-            g2d.drawImage(floors[i], i * scale, row * scale, null);
-            if (map.getActiveFloor() == i)
-                g2d.drawImage(cursor, i * scale, row * scale, null);
-        }
+            sprites.drawFloor(g2d, i, i * statusScale, row * statusScale);
         row++;
 
         // Walls:
@@ -230,9 +378,7 @@ public class MapView extends javax.swing.JPanel
         i = 0;
         while (i < 20 + Map.flipWallTypes)
         {
-            g2d.drawImage(walls[i], j * scale, row * scale, null);
-            if (map.getActiveWall() == i)
-                g2d.drawImage(cursor, j * scale, row * scale, null);
+            sprites.drawWall(g2d, i, j * statusScale, row * statusScale);
 
             i++;
             j++;
@@ -245,33 +391,145 @@ public class MapView extends javax.swing.JPanel
 
         // Glyphs:
         for (i = 0; i< Map.glyphTypes; i++)
+            sprites.drawGlyph(g2d, i, i * statusScale, row * statusScale);
+
+        g2d.dispose();
+        return paletteImage;
+    }
+
+    /**
+     * Draws the palette, with the active floor, wall and glyph marked
+     */
+    private void drawPalette(Graphics2D g2d, int viewWidth)
+    {
+        int statusScale = getStatusScale();
+
+        g2d.setColor(Color.LIGHT_GRAY);
+        g2d.fillRect(0, 0, viewWidth, getPaletteHeight());
+        g2d.drawImage(getPaletteImage(), 0, 0, null);
+
+        int wallColumn = map.getActiveWall();
+        if (wallColumn >= 20)
+            wallColumn = wallColumn - 20 + Map.normalWallTypes;
+
+        sprites.drawCursor(g2d, map.getActiveFloor() * statusScale, 0);
+        sprites.drawCursor(g2d, wallColumn * statusScale, statusScale);
+        sprites.drawCursor(g2d, map.getActiveGlyph() * statusScale, 2 * statusScale);
+    }
+
+    /**
+     * Brings the back buffer up to date with the current scroll position.
+     * A scroll shifts the buffer contents and only renders the rows and
+     * columns that came into view; everything is rendered again when the
+     * size, scale or floor changed or the view jumped by more than a screen.
+     */
+    private void updateBackBuffer(int floor)
+    {
+        int dx = scrollX - bufferScrollX;
+        int dy = scrollY - bufferScrollY;
+
+        if (backBuffer == null ||
+            backBuffer.getWidth() != drawWidth * scale ||
+            backBuffer.getHeight() != drawHeight * scale ||
+            bufferScale != scale || bufferFloor != floor ||
+            Math.abs(dx) >= drawWidth || Math.abs(dy) >= drawHeight)
         {
-            g2d.drawImage(glyphs[i], i * scale, row * scale, null);
-            if (map.getActiveGlyph() == i)
-                g2d.drawImage(cursor, i * scale, row * scale, null);
+            if (backBuffer == null ||
+                backBuffer.getWidth() != drawWidth * scale ||
+                backBuffer.getHeight() != drawHeight * scale)
+                backBuffer = SpriteSet.createCompatibleImage(
+                        Math.max(drawWidth * scale, 1), Math.max(drawHeight * scale, 1));
+
+            bufferScrollX = scrollX;
+            bufferScrollY = scrollY;
+            bufferScale = scale;
+            bufferFloor = floor;
+
+            Graphics2D g = backBuffer.createGraphics();
+            renderRegion(g, scrollX, scrollY, scrollX + drawWidth, scrollY + drawHeight, floor);
+            g.dispose();
+            dirtyCells = null;
+            return;
         }
-        row++;
+
+        Graphics2D g = backBuffer.createGraphics();
+
+        if (dx != 0 || dy != 0)
+        {
+            // Shift what is still visible, then fill in the exposed strips
+            g.copyArea(Math.max(dx, 0) * scale, Math.max(dy, 0) * scale,
+                    (drawWidth - Math.abs(dx)) * scale, (drawHeight - Math.abs(dy)) * scale,
+                    -dx * scale, -dy * scale);
+
+            if (dx > 0)
+                renderRegion(g, scrollX + drawWidth - dx, scrollY,
+                        scrollX + drawWidth, scrollY + drawHeight, floor);
+            else if (dx < 0)
+                renderRegion(g, scrollX, scrollY,
+                        scrollX - dx, scrollY + drawHeight, floor);
+
+            if (dy > 0)
+                renderRegion(g, scrollX, scrollY + drawHeight - dy,
+                        scrollX + drawWidth, scrollY + drawHeight, floor);
+            else if (dy < 0)
+                renderRegion(g, scrollX, scrollY,
+                        scrollX + drawWidth, scrollY - dy, floor);
+
+            bufferScrollX = scrollX;
+            bufferScrollY = scrollY;
+        }
+
+        if (dirtyCells != null)
+        {
+            renderRegion(g, dirtyCells.x, dirtyCells.y,
+                    dirtyCells.x + dirtyCells.width, dirtyCells.y + dirtyCells.height, floor);
+            dirtyCells = null;
+        }
+
+        g.dispose();
     }
 
-    @Override
-    public void paint(Graphics g)
+    /**
+     * Renders the cells in [leftX, rightX) x [topY, bottomY) into the back
+     * buffer
+     */
+    private void renderRegion(Graphics2D g2d, int leftX, int topY,
+            int rightX, int bottomY, int floor)
     {
-        Graphics2D g2d = (Graphics2D)g;
-        Tile current;
-        int floor = map.getCursorZ();
-
-        Rectangle viewArea = this.getBounds();
+        // Only the visible part: a dirty region may cover a whole floor, and
+        // the renderer would otherwise draw (and cache) every chunk in it
+        leftX = Math.max(leftX, scrollX);
+        topY = Math.max(topY, scrollY);
+        rightX = Math.min(rightX, scrollX + drawWidth);
+        bottomY = Math.min(bottomY, scrollY + drawHeight);
+        if (leftX >= rightX || topY >= bottomY)
+            return;
+
+        int left = (leftX - scrollX) * scale;
+        int top = (topY - scrollY) * scale;
+        renderer.setBackground(getBackground());
+        g2d.translate(left, top);
+        renderer.render(g2d, floor,
+                new Rectangle(leftX, topY, rightX - leftX, bottomY - topY), scale);
+        g2d.translate(-left, -top);
+    }
 
+    /**
+     * Works out the size of the map area and moves the view to keep the
+     * cursor away from its edges
+     * @return true if the view scrolled or changed size
+     */
+    private boolean updateScroll()
+    {
         // Calculate the viewable area (height is offset for status box)
-        int viewWidth = (int)viewArea.getWidth();
-        int viewHeight = (int)viewArea.getHeight();
-
-        int drawWidth = (viewWidth / scale);
-        int drawHeight = (viewHeight / scale) - 4;
-        if (drawWidth > map.getWidth())
-            drawWidth = map.getWidth();
-        if (drawHeight > map.getHeight())
-            drawHeight = map.getHeight();
+        int newDrawWidth = toCells(getWidth());
+        int newDrawHeight = toCells(getHeight() - getPaletteHeight());
+        if (newDrawWidth > map.getWidth())
+            newDrawWidth = map.getWidth();
+        if (newDrawHeight > map.getHeight())
+            newDrawHeight = map.getHeight();
+        newDrawWidth = Math.max(newDrawWidth, 0);
+        newDrawHeight = Math.max(newDrawHeight, 0);
 
         // Determine our scrolling position
         int newScrollX = scrollX;
@@ -281,11 +539,11 @@ public class MapView extends javax.swing.JPanel
         if (newScrollX < 0 || newScrollY < 0 ||
             map.getCursorX() < newScrollX ||
             map.getCursorY() < newScrollY ||
-            map.getCursorX() >= newScrollX + drawWidth ||
-            map.getCursorY() >= newScrollY + drawHeight)
+            map.getCursorX() >= newScrollX + newDrawWidth ||
+            map.getCursorY() >= newScrollY + newDrawHeight)
         {
-            newScrollX = map.getCursorX() - (drawWidth / 2);
-            newScrollY = map.getCursorY() - (drawHeight /2);
+            newScrollX = map.getCursorX() - (newDrawWidth / 2);
+            newScrollY = map.getCursorY() - (newDrawHeight /2);
         }
 
 
@@ -294,107 +552,193 @@ public class MapView extends javax.swing.JPanel
             newScrollX = map.getCursorX() - 3;
         if (map.getCursorY() < (newScrollY + 3))
             newScrollY = map.getCursorY() - 3;
-        if (map.getCursorX() >= newScrollX + drawWidth - 3)
-            newScrollX = map.getCursorX() + 3 - drawWidth;
-        if (map.getCursorY() >= newScrollY + drawHeight - 3)
-            newScrollY = map.getCursorY() + 3 - drawHeight;
+        if (map.getCursorX() >= newScrollX + newDrawWidth - 3)
+            newScrollX = map.getCursorX() + 3 - newDrawWidth;
+        if (map.getCursorY() >= newScrollY + newDrawHeight - 3)
+            newScrollY = map.getCursorY() + 3 - newDrawHeight;
 
         // Limit the view by edges:
-        newScrollX = Math.min(newScrollX, map.getWidth() - drawWidth);
-        newScrollY = Math.min(newScrollY, map.getHeight() - drawHeight);
+        newScrollX = Math.min(newScrollX, map.getWidth() - newDrawWidth);
+        newScrollY = Math.min(newScrollY, map.getHeight() - newDrawHeight);
         newScrollX = Math.max(newScrollX, 0);
         newScrollY = Math.max(newScrollY, 0);
 
-        // Define the outer draw edges:
-        int leftX, rightX, topY, bottomY;
+        // Shrunk maps scroll by whole pixels
+        newScrollX &= -(1 << level);
+        newScrollY &= -(1 << level);
 
-        //Full re-draw when we scroll:
-        if (newScrollX != scrollX || newScrollY != scrollY)
-            fullPaint = true;
+        boolean changed = newScrollX != scrollX || newScrollY != scrollY ||
+                newDrawWidth != drawWidth || newDrawHeight != drawHeight;
+        Rectangle oldViewport = getViewport();
 
         // Store persistant info:
         scrollX = newScrollX;
         scrollY = newScrollY;
+        drawWidth = newDrawWidth;
+        drawHeight = newDrawHeight;
 
-        //Choose our drawing boundary based on the fullPaint flag:
-        if (fullPaint)
-        {
-            leftX = scrollX;
-            rightX = scrollX + drawWidth;
-            topY = scrollY;
-            bottomY = scrollY + drawHeight;
-        }
-        else
-        {
-            leftX = map.getCursorX() - 1;
-            rightX = map.getCursorX() + 2;
-            topY = map.getCursorY() - 1;
-            bottomY = map.getCursorY() + 2;
-        }
+        if (changed)
+            firePropertyChange("viewport", oldViewport, getViewport());
+        return changed;
+    }
 
-        // Bounds check on the outer draw edges:
-        leftX = Math.max(leftX, scrollX);
-        rightX = Math.min(rightX, map.getWidth());
-        topY = Math.max(topY, scrollY);
-        bottomY = Math.min(bottomY, map.getHeight());
+    /**
+     * Draws the map area below icon size with the LOD renderer, straight
+     * into the pixels of an image the size of the map area
+     */
+    private void paintZoomedOut(Graphics2D g2d, int floor, Rectangle clip, int top)
+    {
+        int width = toPixelsCeil(drawWidth);
+        int height = toPixelsCeil(drawHeight);
+        if (width <= 0 || height <= 0)
+            return;
 
-        // Also need to offset wall drawing by one:
-        int wallX = Math.max(leftX - 1, scrollX);
-        int wallY = Math.max(topY - 1, scrollY);
+        if (lodImage == null || lodImage.getWidth() != width || lodImage.getHeight() != height)
+            lodImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 
-        // Draw the Status Box:
-        drawStatus(g2d, viewWidth);
+        Rectangle area = clip == null ? new Rectangle(0, 0, width, height) :
+                new Rectangle(clip.x, clip.y - top, clip.width, clip.height);
+        int[] pixels = ((DataBufferInt)lodImage.getRaster().getDataBuffer()).getData();
+        renderer.render(pixels, width, height, floor, scale, level,
+                scrollX, scrollY, area);
 
-        // If doing a full paint, clear outside the viewable area:
-        if (fullPaint)
-        {
-            g2d.setColor(Color.LIGHT_GRAY);
-            int drawWidthPixels = drawWidth * scale;
-            int drawHeightPixels = drawHeight * scale;
-
-            if (drawWidthPixels < viewWidth)
-                g2d.fillRect(drawWidthPixels, 0, viewWidth - drawWidthPixels, viewHeight);
-            if (drawHeightPixels < viewHeight)
-                g2d.fillRect(0, drawHeightPixels, viewWidth, viewHeight - drawHeightPixels);
-        }
+        g2d.drawImage(lodImage, 0, top, null);
+    }
 
+    /** Shows the error dialog for a floor that could not be read */
+    private void showFloorError(IOException cause)
+    {
+        DungeonMapperView view = (DungeonMapperView)
+                DungeonMapperApp.getApplication().getMainView();
+        view.showFloorError(cause);
+    }
 
-        // Draw the floor & glyphs
-        for (int i=leftX; i<rightX; i++)
-            for (int j=topY; j<bottomY; j++)
-            {
-                current = map.getTile(i, j, floor);
-                g2d.drawImage(floors[current.getFloor()],
-                        (i-scrollX) * scale, (j-scrollY+4) * scale, null);
-                g2d.drawImage(glyphs[current.getGlyph()],
-                        (i-scrollX) * scale, (j-scrollY+4) * scale, null);
-            }
+    @Override
+    protected void paintComponent(Graphics g)
+    {
+        Graphics2D g2d = (Graphics2D)g;
+        int floor = map.getCursorZ();
+        int viewWidth = getWidth();
+        int viewHeight = getHeight();
+
+        // Resizes are the only scrolls not already handled by events
+        if (updateScroll())
+            repaint();
+
+        // Draw the palette, and stop there for palette changes:
+        int statusHeight = getPaletteHeight();
+        Rectangle clip = g2d.getClipBounds();
+        if (clip == null || clip.y < statusHeight)
+            drawPalette(g2d, viewWidth);
+        if (clip != null && clip.y + clip.height <= statusHeight)
+            return;
 
-        // Then draw the walls overtop:
-        for (int i=leftX; i<rightX; i++)
-            for (int j=wallY; j<bottomY; j++)
+        // Clear outside the viewable area:
+        g2d.setColor(Color.LIGHT_GRAY);
+        int drawWidthPixels = toPixelsCeil(drawWidth);
+        int drawHeightPixels = toPixelsCeil(drawHeight) + statusHeight;
+
+        if (drawWidthPixels < viewWidth)
+            g2d.fillRect(drawWidthPixels, statusHeight, viewWidth - drawWidthPixels, viewHeight - statusHeight);
+        if (drawHeightPixels < viewHeight)
+            g2d.fillRect(0, drawHeightPixels, viewWidth, viewHeight - drawHeightPixels);
+
+        try
+        {
+            if (scale >= MapRenderer.SPRITE_SCALE)
             {
-                current = map.getTile(i, j, floor);
-                g2d.drawImage(horizwalls[current.getHorizWall()],
-                        (i-scrollX) * scale, ((j-scrollY+4) * scale) + scale/2, null);
+                updateBackBuffer(floor);
+                g2d.drawImage(backBuffer, 0, statusHeight, null);
             }
+            else
+                paintZoomedOut(g2d, floor, clip, statusHeight);
+        }
+        catch (IllegalStateException ex)
+        {
+            // Floor switches load their floor first, so this is one of the
+            // ghost floors: drop them and redraw without
+            if (!(ex.getCause() instanceof IOException))
+                throw ex;
+            renderer.setShowGhosts(false);
+            backBuffer = null;
+            repaint();
 
-        for (int i=wallX; i<rightX; i++)
-            for (int j=topY; j<bottomY; j++)
+            final IOException cause = (IOException)ex.getCause();
+            SwingUtilities.invokeLater(new Runnable()
             {
-                current = map.getTile(i, j, floor);
-                g2d.drawImage(walls[current.getVertWall()],
-                        ((i-scrollX) * scale) + scale/2, (j-scrollY+4) * scale, null);
-            }
+                public void run()
+                {
+                    showFloorError(cause);
+                }
+            });
+        }
 
-        // Finally draw the cursor:
-        g2d.drawImage(cursor, (map.getCursorX() - scrollX) * scale,
-                (map.getCursorY() - scrollY + 4) * scale, null);
+        // The selection goes over the map but under the cursor
+        paintedSelection = null;
+        if (map.hasSelection() && map.getSelectionZ() == floor)
+        {
+            paintedSelection = map.getSelection();
+            Rectangle bounds = cellBounds(paintedSelection.x, paintedSelection.y,
+                    paintedSelection.width, paintedSelection.height);
+            Graphics2D mapArea = (Graphics2D)g2d.create();
+            mapArea.clipRect(0, statusHeight, viewWidth, viewHeight - statusHeight);
+            mapArea.setColor(SELECTION_FILL);
+            mapArea.fill(bounds);
+            mapArea.setColor(SELECTION_OUTLINE);
+            mapArea.drawRect(bounds.x, bounds.y, bounds.width - 1, bounds.height - 1);
+            mapArea.dispose();
+        }
 
+        // Finally draw the cursor:
+        Rectangle cursor = cellBounds(map.getCursorX(), map.getCursorY(), 1, 1);
+        if (scale >= MapRenderer.SPRITE_SCALE)
+            sprites.drawCursor(g2d, cursor.x, cursor.y);
+        else
+        {
+            g2d.setColor(Color.RED);
+            g2d.drawRect(cursor.x - 1, cursor.y - 1, cursor.width + 1, cursor.height + 1);
+        }
+        paintedCursorX = map.getCursorX();
+        paintedCursorY = map.getCursorY();
+        paintedFloor = floor;
 
-        // Default to "true" for next time:
-        fullPaint = true;
         Toolkit.getDefaultToolkit().sync();
     }
 
+    /**
+     * The line above the view with the map name and cursor position
+     */
+    private class StatusLine extends JComponent
+    {
+        StatusLine()
+        {
+            setOpaque(true);
+        }
+
+        @Override
+        public Dimension getPreferredSize()
+        {
+            return new Dimension(0, getStatusScale());
+        }
+
+        @Override
+        protected void paintComponent(Graphics g)
+        {
+            int statusScale = getStatusScale();
+            g.setColor(Color.LIGHT_GRAY);
+            g.fillRect(0, 0, getWidth(), getHeight());
+
+            if (statusFont == null || statusFont.getSize() != statusScale * 3 / 4)
+                statusFont = new Font("Dialog", Font.PLAIN, statusScale * 3 / 4);
+
+            g.setColor(Color.BLACK);
+            g.setFont(statusFont);
+            g.drawString(String.format("%s : Floor %d / %d [X: %d / %d, Y: %d / %d]",
+                    map.getName(), map.getCursorZ() + 1, map.getFloors(),
+                    map.getCursorX() + 1, map.getWidth(),
+                    map.getCursorY() + 1, map.getHeight()),
+                    0, statusScale * 3 / 4);
+        }
+    }
+
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper;
+
+import dungeonmapper.map.Map;
+import dungeonmapper.map.MapEvent;
+import dungeonmapper.map.MapListener;
+import dungeonmapper.render.MapRenderer;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import javax.swing.JComponent;
+
+/**
+ * Overview of the current floor beside the map view, with the part shown
+ * in the view outlined. Clicking or dragging moves the cursor there.
+ *
+ * The floor is drawn at one pixel per cell, or from a mipmap for maps too
+ * big to fit, copied from the raster the view's MapRenderer keeps up to
+ * date as cells change. Edits only repaint the pixels of the changed cells.
+ */
+public class MiniMapView extends JComponent
+{
+    // Largest width or height in pixels before the overview is shrunk
+    private static final int MAX_SIZE = 256;
+
+    private final MapView view;
+    private Map map;
+    private int level;
+    private BufferedImage image;
+    private Rectangle viewport;
+    private int paintedFloor = -1;
+
+    private final MapListener mapHandler = new MapListener()
+    {
+        public void cellsChanged(MapEvent e)
+        {
+            if (e.getFloor() == map.getCursorZ())
+                repaint(toPixels(new Rectangle(e.getX(), e.getY(),
+                        e.getWidth(), e.getHeight())));
+        }
+
+        public void cursorMoved(MapEvent e)
+        {
+            if (e.getFloor() != paintedFloor)
+                repaint();
+        }
+
+        public void paletteChanged(MapEvent e)
+        {
+        }
+
+        public void selectionChanged(MapEvent e)
+        {
+        }
+    };
+
+    public MiniMapView(MapView view)
+    {
+        this.view = view;
+        viewport = view.getViewport();
+        setMap(view.getMap());
+
+        view.addPropertyChangeListener(new PropertyChangeListener()
+        {
+            public void propertyChange(PropertyChangeEvent evt)
+            {
+                if ("map".equals(evt.getPropertyName()))
+                    setMap((Map)evt.getNewValue());
+                else if ("viewport".equals(evt.getPropertyName()))
+                {
+                    repaint(getViewportBounds());
+                    viewport = (Rectangle)evt.getNewValue();
+                    repaint(getViewportBounds());
+                }
+            }
+        });
+
+        MouseAdapter mouseHandler = new MouseAdapter()
+        {
+            @Override
+            public void mousePressed(MouseEvent e)
+            {
+                jumpTo(e);
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e)
+            {
+                jumpTo(e);
+            }
+        };
+        addMouseListener(mouseHandler);
+        addMouseMotionListener(mouseHandler);
+    }
+
+    private void setMap(Map newMap)
+    {
+        if (map != null)
+            map.removeMapListener(mapHandler);
+        map = newMap;
+        map.addMapListener(mapHandler);
+
+        level = 0;
+        while (level < MapRenderer.MAX_LEVEL &&
+               (levelSize(map.getWidth()) > MAX_SIZE || levelSize(map.getHeight()) > MAX_SIZE))
+            level++;
+
+        image = new BufferedImage(levelSize(map.getWidth()), levelSize(map.getHeight()),
+                BufferedImage.TYPE_INT_RGB);
+        setPreferredSize(new Dimension(image.getWidth(), image.getHeight()));
+        revalidate();
+        repaint();
+    }
+
+    private int levelSize(int cells)
+    {
+        return (cells + (1 << level) - 1) >> level;
+    }
+
+    /**
+     * Converts a rectangle of cells to the pixels showing it
+     */
+    private Rectangle toPixels(Rectangle cells)
+    {
+        int left = cells.x >> level;
+        int top = cells.y >> level;
+        return new Rectangle(left, top,
+                levelSize(cells.x + cells.width) - left,
+                levelSize(cells.y + cells.height) - top);
+    }
+
+    private Rectangle getViewportBounds()
+    {
+        // Includes the outline's right and bottom edges
+        Rectangle bounds = toPixels(viewport);
+        bounds.width++;
+        bounds.height++;
+        return bounds;
+    }
+
+    private void jumpTo(MouseEvent e)
+    {
+        map.moveCursor((e.getX() << level) + (1 << level) / 2,
+                (e.getY() << level) + (1 << level) / 2);
+        view.requestFocusInWindow();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g)
+    {
+        int floor = map.getCursorZ();
+        Rectangle clip = g.getClipBounds();
+        if (clip == null)
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+
+        // Bring the pixels being painted up to date
+        int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        view.getRenderer().render(pixels, image.getWidth(), image.getHeight(),
+                floor, 1, level, 0, 0, clip);
+
+        g.setColor(Color.LIGHT_GRAY);
+        g.fillRect(0, 0, getWidth(), getHeight());
+        g.drawImage(image, 0, 0, null);
+
+        Rectangle bounds = toPixels(viewport);
+        g.setColor(Color.RED);
+        g.drawRect(bounds.x, bounds.y, bounds.width, bounds.height);
+
+        paintedFloor = floor;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.map;
+
+/**
+ * A rectangle of packed cells lifted out of a map, as held by the
+ * clipboard.
+ *
+ * Walls are stored in the cell to their left or above them, so the block's
+ * own cells carry its bottom and right edge walls. Its top and left edge
+ * walls live in the neighbouring cells outside the block and are kept
+ * separately, so that a pasted block brings all four edges with it.
+ */
+final class CellBlock
+{
+    final int width;
+    final int height;
+
+    // Row by row, width * height cells
+    final int[] cells;
+
+    // Horizontal walls above each column and vertical walls left of each
+    // row; none where the block lay on the map's edge
+    final int[] topWalls;
+    final int[] leftWalls;
+
+    CellBlock(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        cells = new int[width * height];
+        topWalls = new int[width];
+        leftWalls = new int[height];
+    }
+}
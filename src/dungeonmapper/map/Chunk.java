@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.map;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A square block of packed cells on one floor of a map.
+ *
+ * Chunks may be shared between a map and its snapshots. Only the map whose
+ * owner token matches may write a chunk in place; any other map copies it
+ * first.
+ */
+final class Chunk
+{
+    static final int BITS = 4;
+    static final int SIZE = 1 << BITS;
+    static final int MASK = SIZE - 1;
+    static final int CELLS = SIZE * SIZE;
+
+    // Declared before EMPTY, whose constructor takes a stamp
+    private static final AtomicLong stamps = new AtomicLong();
+
+    /** Shared stand-in for every block that has never been written */
+    static final Chunk EMPTY = new Chunk();
+
+    final int[] cells;
+    final Object owner;
+
+    // Changes whenever the cells may have changed, so that views can tell
+    // whether anything they derived from the chunk is stale
+    long stamp;
+
+    /**
+     * Creates an empty chunk not owned by any map, as done when reading
+     * files; maps copy such chunks on their first write to them
+     */
+    Chunk()
+    {
+        this(null);
+    }
+
+    Chunk(Object owner)
+    {
+        cells = new int[CELLS];
+        this.owner = owner;
+        touch();
+    }
+
+    Chunk(Chunk source, Object owner)
+    {
+        cells = source.cells.clone();
+        this.owner = owner;
+        stamp = source.stamp;
+    }
+
+    /**
+     * Gives the chunk a new stamp before its cells are written
+     */
+    void touch()
+    {
+        stamp = stamps.incrementAndGet();
+    }
+
+    /**
+     * Offset of a map position within its chunk
+     * @param x map x coordinate
+     * @param y map y coordinate
+     * @return index into cells
+     */
+    static int offset(int x, int y)
+    {
+        return ((y & MASK) << BITS) | (x & MASK);
+    }
+
+    /**
+     * Number of chunks needed to cover the given number of cells
+     */
+    static int count(int cells)
+    {
+        return (cells + MASK) >> BITS;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Supplies the floors of a lazily opened indexed map file.
+ *
+ * Floors are read from the file when a map first needs them, or earlier
+ * by a background prefetch. A map and its snapshots share one loader: each
+ * floor is read once and the same chunk table is handed to every map that
+ * takes it. The tables are never written in place, since maps copy chunks
+ * they do not own before writing.
+ */
+final class FloorLoader
+{
+    private final File file;
+    private final MapFile.Index index;
+    private final long fileLength;
+    private final long fileModified;
+
+    // Floors read so far (null for empty floors), and those being read
+    // ahead of time
+    private final Chunk[][] loaded;
+    private final boolean[] done;
+    private final boolean[] prefetching;
+
+    FloorLoader(File file, MapFile.Index index)
+    {
+        this.file = file;
+        this.index = index;
+        fileLength = file.length();
+        fileModified = file.lastModified();
+
+        loaded = new Chunk[index.floors][];
+        done = new boolean[index.floors];
+        prefetching = new boolean[index.floors];
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Gets a floor, reading it now unless it was read before
+     * @param z floor to take
+     * @return the floor's chunk table, or null if the floor is empty
+     * @throws IOException if the floor cannot be read
+     */
+    Chunk[] take(int z) throws IOException
+    {
+        synchronized (this)
+        {
+            // Wait for a running prefetch rather than reading twice
+            while (prefetching[z])
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while loading floor " + (z + 1));
+                }
+            }
+
+            if (done[z] || index.lengths[z] == 0)
+                return loaded[z];
+        }
+
+        Chunk[] floorChunks = read(z);
+
+        synchronized (this)
+        {
+            // Another map may have read the floor meanwhile; keep one table
+            if (!done[z])
+            {
+                loaded[z] = floorChunks;
+                done[z] = true;
+            }
+            return loaded[z];
+        }
+    }
+
+    /**
+     * Starts reading a floor in the background so that a later take() does
+     * not have to wait for the disk
+     * @param z floor to read ahead; ignored if out of range or already loaded
+     */
+    void prefetch(final int z)
+    {
+        synchronized (this)
+        {
+            if (z < 0 || z >= done.length || done[z] || prefetching[z] ||
+                index.lengths[z] == 0)
+                return;
+            prefetching[z] = true;
+        }
+
+        MapFile.submit(new Runnable()
+        {
+            public void run()
+            {
+                Chunk[] floorChunks = null;
+                try
+                {
+                    floorChunks = read(z);
+                }
+                catch (IOException ex)
+                {
+                    // take() will retry and report the error to the map
+                }
+                finally
+                {
+                    synchronized (FloorLoader.this)
+                    {
+                        if (floorChunks != null && !done[z])
+                        {
+                            loaded[z] = floorChunks;
+                            done[z] = true;
+                        }
+                        prefetching[z] = false;
+                        FloorLoader.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private Chunk[] read(int z) throws IOException
+    {
+        if (file.length() != fileLength || file.lastModified() != fileModified)
+            throw new IOException("Map file " + file + " changed on disk since it was opened");
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try
+        {
+            return MapFile.readFloor(in.getChannel(), index, z);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
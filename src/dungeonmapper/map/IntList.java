@@ -0,0 +1,117 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.map;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints, to avoid boxing in large work lists and
+ * change records.
+ */
+final class IntList
+{
+    private int[] values;
+    private int size = 0;
+
+    IntList()
+    {
+        this(16);
+    }
+
+    IntList(int capacity)
+    {
+        values = new int[Math.max(capacity, 1)];
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    int get(int index)
+    {
+        return values[index];
+    }
+
+    void set(int index, int value)
+    {
+        values[index] = value;
+    }
+
+    void add(int value)
+    {
+        if (size == values.length)
+            grow(size + 1);
+        values[size++] = value;
+    }
+
+    void add(int a, int b, int c)
+    {
+        if (size + 3 > values.length)
+            grow(size + 3);
+        values[size++] = a;
+        values[size++] = b;
+        values[size++] = c;
+    }
+
+    /**
+     * Removes and returns the last value
+     */
+    int pop()
+    {
+        return values[--size];
+    }
+
+    /**
+     * Removes the first count values, keeping the rest in order
+     */
+    void removeFirst(int count)
+    {
+        System.arraycopy(values, count, values, 0, size - count);
+        size -= count;
+    }
+
+    void clear()
+    {
+        size = 0;
+    }
+
+    /**
+     * The backing array; only the first size() values are meaningful
+     */
+    int[] array()
+    {
+        return values;
+    }
+
+    int[] toArray()
+    {
+        return Arrays.copyOf(values, size);
+    }
+
+    private void grow(int minCapacity)
+    {
+        values = Arrays.copyOf(values, Math.max(minCapacity, values.length * 2));
+    }
+}
@@ -18,17 +18,14 @@
  */
 package dungeonmapper.map;
 
+import java.awt.Rectangle;
 import java.awt.event.KeyEvent;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.util.Scanner;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Map
 {
@@ -37,49 +34,1252 @@ public class Map
     public static final int flipWallTypes = 4;
     public static final int glyphTypes = 21;
 
+    /** Width and height in cells of the blocks a map is stored in */
+    public static final int CHUNK_SIZE = Chunk.SIZE;
+
+    /** Version of the binary format written by saveMap */
+    public static final int FILE_VERSION = MapFile.VERSION;
+
+    /** Version reported by getFileVersion for the legacy text format */
+    public static final int TEXT_FILE_VERSION = MapFile.TEXT_VERSION;
+
     private int width;
     private int height;
     private int floors;
 
-    private int cursorX;
-    private int cursorY;
-    private int cursorZ;
+    private int cursorX;
+    private int cursorY;
+    private int cursorZ;
+
+    // Chunk tables per floor, indexed [floor][chunkY * chunksX + chunkX].
+    // A floor's table stays null until something is written to it.
+    private int chunksX;
+    private int chunksY;
+    private Chunk[][] chunks;
+
+    // Chunks and chunk tables are shared with snapshots and copied on write.
+    // A table may only be written in place if its floor's entry in
+    // floorOwners is this map's owner token, a chunk if its own owner is.
+    private Object owner = new Object();
+    private Object[] floorOwners;
+
+    // Source of floors not loaded yet, for maps opened lazily, and the
+    // floors this map has still to take from it
+    private FloorLoader loader = null;
+    private boolean[] floorsToLoad;
+    private int floorsLeft;
+
+    private boolean writingFloor = false;
+    private boolean writingTopWall = false;
+    private boolean writingBottomWall = false;
+    private boolean writingLeftWall = false;
+    private boolean writingRightWall = false;
+    private boolean writingGlyph = false;
+
+    private int activeFloor = 1;
+    private int activeWall = 1;
+    private int activeGlyph = 1;
+    private String name = "Untitled";
+
+    private final CopyOnWriteArrayList<MapListener> listeners =
+            new CopyOnWriteArrayList<MapListener>();
+
+    // Nesting depth of bulk edits. While positive, changed cells are
+    // collected into one (x0, y0, x1, y1) bounding box per floor, announced
+    // in a single event per floor when the outermost edit ends.
+    private int batchDepth = 0;
+    private int[][] batchBounds;
+
+    // Undo history. Changes are grouped into one action per key press,
+    // per stroke (from pressing a drawing key until all are released) and
+    // per bulk edit; actions nest, the outermost one counts.
+    private final MapHistory history = new MapHistory();
+    private int actionDepth = 0;
+    private boolean stroking = false;
+    private boolean recordingHistory = true;
+
+    // Selected rectangle of cells on floor selectionZ; none while its width
+    // is 0
+    private int selectionX = 0;
+    private int selectionY = 0;
+    private int selectionWidth = 0;
+    private int selectionHeight = 0;
+    private int selectionZ = 0;
+
+    // Cut or copied cells, shared by all maps so that they can be pasted
+    // into another map. Maps are only edited on the event dispatch thread.
+    private static CellBlock clipboard = null;
+
+    // Cell changes since the last checkpoint (full save), as (floor, cell
+    // index, cell) triples, so that saves can append them to a journal
+    // instead of rewriting the file. journalSequence counts every change
+    // ever made; the journal holds the most recent ones. If changes had to
+    // be dropped to bound memory, journalLostUntil is the sequence up to
+    // which they were lost, and only a new checkpoint can save them.
+    private static final int MAX_JOURNAL_INTS = 3 * 256 * 1024;
+    private static final long JOURNAL_COMPACT_SIZE = 4 * 1024 * 1024;
+    private static final Random checkpointIds = new Random();
+    private IntList journal = new IntList();
+    private long journalSequence = 0;
+    private long journalLostUntil = 0;
+    private long savedSequence = 0;
+    private long checkpointId = 0;
+    // Journal sequence the current checkpoint was saved at, to tell older
+    // checkpoints from newer ones when saves finish
+    private long checkpointSequence = 0;
+    private File checkpointFile = null;
+
+    public Map(int width, int height, int floors)
+    {
+        this.width = width;
+        this.height = height;
+        this.floors = floors;
+
+        cursorX = width/2;
+        cursorY = height/2;
+        cursorZ = 0;
+
+        chunksX = Chunk.count(width);
+        chunksY = Chunk.count(height);
+        chunks = new Chunk[floors][];
+        floorOwners = new Object[floors];
+    }
+
+    /**
+     * Gets the chunk table of a floor, loading the floor first if the map
+     * was opened lazily and it has not been used yet. Moving the cursor to
+     * another floor loads it through loadFloor, so a read error only gets
+     * here for floors that are used without being visited.
+     * @return the table, or null for a floor that has never been written
+     */
+    private Chunk[] getFloorChunks(int z)
+    {
+        try
+        {
+            loadFloor(z);
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Could not load floor " + (z + 1) +
+                    " of " + loader.getFile(), ex);
+        }
+        return chunks[z];
+    }
+
+    /**
+     * Reads a floor of a lazily opened map if it is still on disk
+     * @param z floor to load
+     * @throws IOException if the floor cannot be read; a later call retries
+     */
+    private void loadFloor(int z) throws IOException
+    {
+        if (loader == null || !floorsToLoad[z])
+            return;
+
+        chunks[z] = loader.take(z);
+        floorLoaded(z);
+    }
+
+    /**
+     * Notes that a floor came from the loader, dropping the loader once
+     * every floor has
+     */
+    private void floorLoaded(int z)
+    {
+        floorsToLoad[z] = false;
+        if (--floorsLeft == 0)
+        {
+            loader = null;
+            floorsToLoad = null;
+        }
+    }
+
+    void setLoader(FloorLoader loader) throws IOException
+    {
+        this.loader = loader;
+        floorsToLoad = new boolean[floors];
+        Arrays.fill(floorsToLoad, true);
+        floorsLeft = floors;
+        loadFloor(cursorZ);
+        prefetchAdjacentFloors();
+    }
+
+    private void prefetchAdjacentFloors()
+    {
+        if (loader == null)
+            return;
+
+        loader.prefetch(cursorZ - 1);
+        loader.prefetch(cursorZ + 1);
+    }
+
+    /**
+     * Makes sure every floor of a lazily opened map is in memory, reading
+     * the missing ones in parallel
+     * @throws IOException if a floor cannot be read
+     */
+    public void loadAllFloors() throws IOException
+    {
+        if (loader == null)
+            return;
+
+        for (int z = 0; z < floors; z++)
+            loader.prefetch(z);
+
+        for (int z = 0; z < floors && loader != null; z++)
+            loadFloor(z);
+    }
+
+    private Chunk getChunk(int x, int y, int z)
+    {
+        Chunk[] floorChunks = getFloorChunks(z);
+        if (floorChunks == null)
+            return Chunk.EMPTY;
+        return floorChunks[(y >> Chunk.BITS) * chunksX + (x >> Chunk.BITS)];
+    }
+
+    /**
+     * Gets the chunk holding the given position for writing: the shared
+     * empty chunk is materialized, and a chunk (or chunk table) this map
+     * does not own is copied first.
+     */
+    private Chunk getWritableChunk(int x, int y, int z)
+    {
+        Chunk[] floorChunks = getFloorChunks(z);
+        if (floorChunks == null)
+        {
+            floorChunks = new Chunk[chunksX * chunksY];
+            Arrays.fill(floorChunks, Chunk.EMPTY);
+            chunks[z] = floorChunks;
+            floorOwners[z] = owner;
+        }
+        else if (floorOwners[z] != owner)
+        {
+            floorChunks = floorChunks.clone();
+            chunks[z] = floorChunks;
+            floorOwners[z] = owner;
+        }
+
+        int index = (y >> Chunk.BITS) * chunksX + (x >> Chunk.BITS);
+        Chunk chunk = floorChunks[index];
+        if (chunk == Chunk.EMPTY)
+        {
+            chunk = new Chunk(owner);
+            floorChunks[index] = chunk;
+        }
+        else if (chunk.owner != owner)
+        {
+            chunk = new Chunk(chunk, owner);
+            floorChunks[index] = chunk;
+        }
+
+        // Every caller writes to the chunk it gets
+        chunk.touch();
+        return chunk;
+    }
+
+    /**
+     * Returns the packed cell at the given position; use the Tile helpers to
+     * unpack it.
+     */
+    public int getCell(int x, int y, int z)
+    {
+        return getChunk(x, y, z).cells[Chunk.offset(x, y)];
+    }
+
+    public void setCell(int x, int y, int z, int cell)
+    {
+        writeCell(x, y, z, cell);
+    }
+
+    /**
+     * Writes a cell, records the change and announces it, or adds it to the
+     * current batch
+     * @return true if the cell changed
+     */
+    private boolean writeCell(int x, int y, int z, int cell)
+    {
+        // Writing what is already there must not materialize an empty chunk
+        if (getCell(x, y, z) == cell)
+            return false;
+
+        int[] cells = getWritableChunk(x, y, z).cells;
+        int offset = Chunk.offset(x, y);
+        if (recordingHistory)
+            history.record(z, y * width + x, cells[offset], cell);
+        cells[offset] = cell;
+        recordChange(z, y * width + x, cell);
+        cellsChanged(z, x, y, x + 1, y + 1);
+        return true;
+    }
+
+    /**
+     * Sets the floor type of the cells [x0, x1) of a row, getting each
+     * chunk for writing only once and only if something in it changes
+     * @return the number of cells changed
+     */
+    private int writeFloorRun(int x0, int x1, int y, int z, int floor)
+    {
+        int changed = 0;
+        int rowOffset = (y & Chunk.MASK) << Chunk.BITS;
+        int first = x1;
+        int last = x0;
+
+        for (int x = x0; x < x1; x = (x | Chunk.MASK) + 1)
+        {
+            int end = Math.min((x | Chunk.MASK) + 1, x1);
+            int[] cells = getChunk(x, y, z).cells;
+            int start = x;
+            while (start < end &&
+                   cells[rowOffset + (start & Chunk.MASK)] == Tile.setFloor(cells[rowOffset + (start & Chunk.MASK)], floor))
+                start++;
+            if (start == end)
+                continue;
+
+            cells = getWritableChunk(x, y, z).cells;
+            for (int i = start; i < end; i++)
+            {
+                int offset = rowOffset + (i & Chunk.MASK);
+                int cell = Tile.setFloor(cells[offset], floor);
+                if (cells[offset] == cell)
+                    continue;
+
+                if (recordingHistory)
+                    history.record(z, y * width + i, cells[offset], cell);
+                cells[offset] = cell;
+                recordChange(z, y * width + i, cell);
+                changed++;
+                first = Math.min(first, i);
+                last = i;
+            }
+        }
+
+        if (changed > 0)
+            cellsChanged(z, first, y, last + 1, y + 1);
+        return changed;
+    }
+
+    /**
+     * Announces changed cells [x0, x1) x [y0, y1), or adds them to the
+     * current batch
+     */
+    private void cellsChanged(int z, int x0, int y0, int x1, int y1)
+    {
+        if (batchDepth == 0)
+        {
+            fireCellsChanged(z, x0, y0, x1 - x0, y1 - y0);
+            return;
+        }
+
+        int[] bounds = batchBounds[z];
+        if (bounds == null)
+            batchBounds[z] = new int[] { x0, y0, x1, y1 };
+        else
+        {
+            bounds[0] = Math.min(bounds[0], x0);
+            bounds[1] = Math.min(bounds[1], y0);
+            bounds[2] = Math.max(bounds[2], x1);
+            bounds[3] = Math.max(bounds[3], y1);
+        }
+    }
+
+    /**
+     * Starts collecting cell changes into one event per floor; batches nest
+     */
+    private void beginBatch()
+    {
+        beginAction();
+        if (batchDepth++ == 0)
+            batchBounds = new int[floors][];
+    }
+
+    /**
+     * Ends a batch, announcing the area changed on each floor once the
+     * outermost batch ends
+     */
+    private void endBatch()
+    {
+        if (--batchDepth == 0)
+        {
+            int[][] bounds = batchBounds;
+            batchBounds = null;
+            for (int z = 0; z < floors; z++)
+                if (bounds[z] != null)
+                    fireCellsChanged(z, bounds[z][0], bounds[z][1],
+                            bounds[z][2] - bounds[z][0], bounds[z][3] - bounds[z][1]);
+        }
+        endAction();
+    }
+
+    /**
+     * Starts grouping changes into one undoable action; actions nest
+     */
+    private void beginAction()
+    {
+        if (actionDepth++ == 0)
+            history.begin();
+    }
+
+    private void endAction()
+    {
+        if (--actionDepth == 0)
+            history.end();
+    }
+
+    /**
+     * Reverts the most recent action
+     * @return false if there was nothing to undo
+     */
+    public boolean undo()
+    {
+        endStroke();
+        int[] changes = history.undo();
+        if (changes == null)
+            return false;
+
+        applyHistory(changes, floorsOf(changes), changes.length - 3, -3, 1);
+        return true;
+    }
+
+    /**
+     * Applies the most recently undone action again
+     * @return false if there was nothing to redo
+     */
+    public boolean redo()
+    {
+        endStroke();
+        int[] changes = history.redo();
+        if (changes == null)
+            return false;
+
+        applyHistory(changes, floorsOf(changes), 0, 3, 2);
+        return true;
+    }
+
+    public boolean canUndo()
+    {
+        return history.canUndo();
+    }
+
+    public boolean canRedo()
+    {
+        return history.canRedo();
+    }
+
+    /**
+     * Sets the memory the undo history may use; the oldest actions are
+     * dropped to stay within it
+     * @param bytes limit in bytes
+     */
+    public void setHistoryLimit(long bytes)
+    {
+        history.setLimit(bytes);
+    }
+
+    public long getHistoryLimit()
+    {
+        return history.getLimit();
+    }
+
+    /**
+     * Finds the floor of each change of a history action up front: floor
+     * switches come before the changes they apply to, which undo visits
+     * last to first
+     * @return the floor per triple
+     */
+    private static int[] floorsOf(int[] changes)
+    {
+        int[] floorOf = new int[changes.length / 3];
+        int z = 0;
+        for (int i = 0; i < changes.length; i += 3)
+        {
+            if (changes[i] < 0)
+                z = -1 - changes[i];
+            floorOf[i / 3] = z;
+        }
+        return floorOf;
+    }
+
+    /**
+     * Writes one side of a history action's changes, without recording
+     * them as a new action
+     * @param start index of the first triple to apply
+     * @param step 3 to go forwards, -3 backwards
+     * @param field 1 to write the old cells, 2 the new ones
+     */
+    private void applyHistory(int[] changes, int[] floorOf, int start, int step, int field)
+    {
+        recordingHistory = false;
+        beginBatch();
+        try
+        {
+            for (int i = start; i >= 0 && i < changes.length; i += step)
+            {
+                int index = changes[i];
+                if (index < 0)
+                    continue;
+                writeCell(index % width, index / width, floorOf[i / 3], changes[i + field]);
+            }
+        }
+        finally
+        {
+            endBatch();
+            recordingHistory = true;
+        }
+    }
+
+    /**
+     * Sets the floor type of every cell in a rectangle, leaving walls and
+     * glyphs alone. The rectangle is clipped to the map.
+     * @return the number of cells changed
+     */
+    public int fillRect(int x, int y, int rectWidth, int rectHeight, int z, int floor)
+    {
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = Math.min(x + rectWidth, width);
+        int y1 = Math.min(y + rectHeight, height);
+        int changed = 0;
+
+        beginBatch();
+        try
+        {
+            for (int j = y0; j < y1; j++)
+                changed += writeFloorRun(x0, x1, j, z, floor);
+        }
+        finally
+        {
+            endBatch();
+        }
+        return changed;
+    }
+
+    /**
+     * Sets the floor type of the area around a cell: every cell reachable
+     * from it through cells of the same floor type without crossing a wall.
+     * Any wall type other than none bounds the area.
+     *
+     * Uses a scanline fill with an explicit stack of seed cells, so the work
+     * is proportional to the area and does not recurse.
+     * @return the number of cells changed
+     */
+    public int floodFill(int x, int y, int z, int floor)
+    {
+        int target = getFloor(x, y, z);
+        if (target == floor)
+            return 0;
+
+        IntList seeds = new IntList();
+        seeds.add(y * width + x);
+        int changed = 0;
+
+        beginBatch();
+        try
+        {
+            while (!seeds.isEmpty())
+            {
+                int seed = seeds.pop();
+                int sy = seed / width;
+                int left = seed % width;
+                if (getFloor(left, sy, z) != target)
+                    continue;
+
+                // Widen the seed to the whole run of its row, up to walls
+                int right = left;
+                while (left > 0)
+                {
+                    int cell = getCell(left - 1, sy, z);
+                    if (Tile.getVertWall(cell) != 0 || Tile.getFloor(cell) != target)
+                        break;
+                    left--;
+                }
+                int rightCell = getCell(right, sy, z);
+                while (right < width - 1 && Tile.getVertWall(rightCell) == 0)
+                {
+                    int cell = getCell(right + 1, sy, z);
+                    if (Tile.getFloor(cell) != target)
+                        break;
+                    right++;
+                    rightCell = cell;
+                }
+
+                changed += writeFloorRun(left, right + 1, sy, z, floor);
+
+                // The walls between this row and the next are on this row,
+                // those to the row above on the row above
+                if (sy > 0)
+                    addSeeds(seeds, left, right, sy - 1, sy - 1, z, target);
+                if (sy < height - 1)
+                    addSeeds(seeds, left, right, sy + 1, sy, z, target);
+            }
+        }
+        finally
+        {
+            endBatch();
+        }
+        return changed;
+    }
+
+    /**
+     * Adds a seed for each run of cells in a neighbouring row that the run
+     * [left, right] can reach
+     * @param y neighbouring row
+     * @param wallY row holding the horizontal walls between the two rows
+     */
+    private void addSeeds(IntList seeds, int left, int right, int y, int wallY,
+            int z, int target)
+    {
+        boolean inRun = false;
+        int previous = Tile.EMPTY;
+        for (int i = left; i <= right; i++)
+        {
+            int cell = getCell(i, y, z);
+            int wallCell = wallY == y ? cell : getCell(i, wallY, z);
+            boolean open = Tile.getHorizWall(wallCell) == 0 && Tile.getFloor(cell) == target;
+
+            // A run continues unless a wall separates it from the cell before
+            if (open && !(inRun && Tile.getVertWall(previous) == 0))
+                seeds.add(y * width + i);
+            inRun = open;
+            previous = cell;
+        }
+    }
+
+    /**
+     * Changes every cell of one floor type on a floor to another floor type
+     * @return the number of cells changed
+     */
+    public int replaceAll(int z, int oldFloor, int newFloor)
+    {
+        if (oldFloor == newFloor)
+            return 0;
+
+        int changed = 0;
+        beginBatch();
+        try
+        {
+            for (int cy = 0; cy < chunksY; cy++)
+                for (int cx = 0; cx < chunksX; cx++)
+                {
+                    // Never written chunks hold nothing but empty cells
+                    if (getChunkAt(cx, cy, z) == Chunk.EMPTY &&
+                        Tile.getFloor(Tile.EMPTY) != oldFloor)
+                        continue;
+
+                    int x0 = cx << Chunk.BITS;
+                    int y0 = cy << Chunk.BITS;
+                    int x1 = Math.min(x0 + Chunk.SIZE, width);
+                    int y1 = Math.min(y0 + Chunk.SIZE, height);
+                    for (int j = y0; j < y1; j++)
+                    {
+                        int rowOffset = (j & Chunk.MASK) << Chunk.BITS;
+                        int i = x0;
+                        while (i < x1)
+                        {
+                            // Writing may replace the chunk with a copy
+                            int[] cells = getChunkAt(cx, cy, z).cells;
+                            if (Tile.getFloor(cells[rowOffset + i - x0]) != oldFloor)
+                            {
+                                i++;
+                                continue;
+                            }
+
+                            // Write each run of the old type at once
+                            int end = i + 1;
+                            while (end < x1 && Tile.getFloor(cells[rowOffset + end - x0]) == oldFloor)
+                                end++;
+                            changed += writeFloorRun(i, end, j, z, newFloor);
+                            i = end;
+                        }
+                    }
+                }
+        }
+        finally
+        {
+            endBatch();
+        }
+        return changed;
+    }
+
+    /**
+     * Selects a rectangle of cells on a floor, clipped to the map; an empty
+     * rectangle clears the selection
+     */
+    public void select(int x, int y, int selectWidth, int selectHeight, int z)
+    {
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = Math.min(x + selectWidth, width);
+        int y1 = Math.min(y + selectHeight, height);
+        if (x0 >= x1 || y0 >= y1 || z < 0 || z >= floors)
+        {
+            clearSelection();
+            return;
+        }
+        if (x0 == selectionX && y0 == selectionY && z == selectionZ &&
+            x1 - x0 == selectionWidth && y1 - y0 == selectionHeight)
+            return;
+
+        selectionX = x0;
+        selectionY = y0;
+        selectionWidth = x1 - x0;
+        selectionHeight = y1 - y0;
+        selectionZ = z;
+        fireSelectionChanged();
+    }
+
+    public void clearSelection()
+    {
+        if (!hasSelection())
+            return;
+
+        selectionWidth = 0;
+        selectionHeight = 0;
+        fireSelectionChanged();
+    }
+
+    public boolean hasSelection()
+    {
+        return selectionWidth > 0;
+    }
+
+    /**
+     * Returns the selected cells, or null if nothing is selected
+     */
+    public Rectangle getSelection()
+    {
+        if (!hasSelection())
+            return null;
+        return new Rectangle(selectionX, selectionY, selectionWidth, selectionHeight);
+    }
+
+    public int getSelectionZ()
+    {
+        return selectionZ;
+    }
+
+    /**
+     * Copies the selected cells, with the walls on all four of their edges,
+     * to the clipboard
+     * @return false if nothing is selected
+     */
+    public boolean copySelection()
+    {
+        if (!hasSelection())
+            return false;
+
+        clipboard = readBlock(selectionX, selectionY, selectionWidth,
+                selectionHeight, selectionZ);
+        return true;
+    }
+
+    /**
+     * Copies the selected cells to the clipboard and clears them, as one
+     * undoable action
+     * @return false if nothing is selected
+     */
+    public boolean cutSelection()
+    {
+        if (!copySelection())
+            return false;
+
+        deleteSelection();
+        return true;
+    }
+
+    /**
+     * Clears the selected cells and the walls on their edges
+     * @return the number of cells changed
+     */
+    public int deleteSelection()
+    {
+        if (!hasSelection())
+            return 0;
+
+        // A new block holds nothing but empty cells and no walls
+        return writeBlock(new CellBlock(selectionWidth, selectionHeight),
+                selectionX, selectionY, selectionZ);
+    }
+
+    /**
+     * Sets the floor type of every selected cell
+     * @return the number of cells changed
+     */
+    public int fillSelection(int floor)
+    {
+        if (!hasSelection())
+            return 0;
+
+        return fillRect(selectionX, selectionY, selectionWidth,
+                selectionHeight, selectionZ, floor);
+    }
+
+    public boolean canPaste()
+    {
+        return clipboard != null;
+    }
+
+    /**
+     * Writes the clipboard's cells with their top left corner at the given
+     * cell, clipped to the map, and selects them
+     * @return false if the clipboard is empty
+     */
+    public boolean paste(int x, int y, int z)
+    {
+        CellBlock block = clipboard;
+        if (block == null || z < 0 || z >= floors)
+            return false;
+
+        writeBlock(block, x, y, z);
+        select(x, y, block.width, block.height, z);
+        return true;
+    }
+
+    /**
+     * Moves the selected cells, leaving empty cells behind, and the
+     * selection with them. The clipboard is left alone.
+     * @param dx columns to move by
+     * @param dy rows to move by
+     * @param dz floors to move by
+     * @return false if nothing is selected or the cells would leave the map
+     * @throws IOException if the target floor cannot be read; nothing moves
+     */
+    public boolean moveSelection(int dx, int dy, int dz) throws IOException
+    {
+        int x = selectionX + dx;
+        int y = selectionY + dy;
+        int z = selectionZ + dz;
+        if (!hasSelection() || x < 0 || y < 0 || z < 0 || z >= floors ||
+            x + selectionWidth > width || y + selectionHeight > height)
+            return false;
+
+        loadFloor(z);
+
+        CellBlock block = readBlock(selectionX, selectionY, selectionWidth,
+                selectionHeight, selectionZ);
+        beginBatch();
+        try
+        {
+            deleteSelection();
+            writeBlock(block, x, y, z);
+        }
+        finally
+        {
+            endBatch();
+        }
+        select(x, y, block.width, block.height, z);
+        return true;
+    }
+
+    /**
+     * Copies a rectangle of cells, which must lie within the map, one chunk
+     * row at a time
+     */
+    private CellBlock readBlock(int x, int y, int blockWidth, int blockHeight, int z)
+    {
+        CellBlock block = new CellBlock(blockWidth, blockHeight);
+        for (int j = 0; j < blockHeight; j++)
+        {
+            int rowOffset = ((y + j) & Chunk.MASK) << Chunk.BITS;
+            for (int i = x; i < x + blockWidth; i = (i | Chunk.MASK) + 1)
+            {
+                int end = Math.min((i | Chunk.MASK) + 1, x + blockWidth);
+                System.arraycopy(getChunk(i, y + j, z).cells, rowOffset + (i & Chunk.MASK),
+                        block.cells, j * blockWidth + i - x, end - i);
+            }
+        }
+
+        // The top and left edge walls are stored in the neighbouring cells
+        if (y > 0)
+            for (int i = 0; i < blockWidth; i++)
+                block.topWalls[i] = getHorizWall(x + i, y - 1, z);
+        if (x > 0)
+            for (int j = 0; j < blockHeight; j++)
+                block.leftWalls[j] = getVertWall(x - 1, y + j, z);
+        return block;
+    }
+
+    /**
+     * Writes a block with its top left corner at the given cell, clipped to
+     * the map, as one batch
+     * @return the number of cells changed
+     */
+    private int writeBlock(CellBlock block, int x, int y, int z)
+    {
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = Math.min(x + block.width, width);
+        int y1 = Math.min(y + block.height, height);
+        if (x0 >= x1 || y0 >= y1)
+            return 0;
+
+        int changed = 0;
+        beginBatch();
+        try
+        {
+            for (int j = y0; j < y1; j++)
+                changed += writeRun(x0, j, z, block.cells,
+                        (j - y) * block.width + x0 - x, x1 - x0);
+
+            // Edge walls go into the neighbouring cells, as when drawing the
+            // top and left walls at the cursor, unless they are off the map
+            if (y0 == y && y > 0)
+                for (int i = x0; i < x1; i++)
+                    if (writeCell(i, y - 1, z, Tile.setHorizWall(getCell(i, y - 1, z),
+                                                                 block.topWalls[i - x])))
+                        changed++;
+            if (x0 == x && x > 0)
+                for (int j = y0; j < y1; j++)
+                    if (writeCell(x - 1, j, z, Tile.setVertWall(getCell(x - 1, j, z),
+                                                                block.leftWalls[j - y])))
+                        changed++;
+        }
+        finally
+        {
+            endBatch();
+        }
+        return changed;
+    }
+
+    /**
+     * Copies packed cells into the row of cells starting at (x0, y),
+     * recording every change. Chunks are only written where something
+     * differs, and then with one array copy each.
+     * @return the number of cells changed
+     */
+    private int writeRun(int x0, int y, int z, int[] source, int sourceOffset, int length)
+    {
+        int changed = 0;
+        int rowOffset = (y & Chunk.MASK) << Chunk.BITS;
+        int x1 = x0 + length;
+        int first = x1;
+        int last = x0;
+
+        for (int x = x0; x < x1; x = (x | Chunk.MASK) + 1)
+        {
+            int count = Math.min((x | Chunk.MASK) + 1, x1) - x;
+            int offset = rowOffset + (x & Chunk.MASK);
+            int from = sourceOffset + x - x0;
+            int[] cells = getChunk(x, y, z).cells;
+            int start = 0;
+            while (start < count && cells[offset + start] == source[from + start])
+                start++;
+            if (start == count)
+                continue;
+
+            cells = getWritableChunk(x, y, z).cells;
+            for (int i = start; i < count; i++)
+            {
+                int cell = source[from + i];
+                if (cells[offset + i] == cell)
+                    continue;
+
+                int index = y * width + x + i;
+                if (recordingHistory)
+                    history.record(z, index, cells[offset + i], cell);
+                recordChange(z, index, cell);
+                changed++;
+                first = Math.min(first, x + i);
+                last = x + i;
+            }
+            System.arraycopy(source, from + start, cells, offset + start, count - start);
+        }
+
+        if (changed > 0)
+            cellsChanged(z, first, y, last + 1, y + 1);
+        return changed;
+    }
+
+    public void addMapListener(MapListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void removeMapListener(MapListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    private void fireCellsChanged(int z, int x, int y, int width, int height)
+    {
+        if (listeners.isEmpty())
+            return;
+
+        MapEvent e = new MapEvent(this, z, x, y, width, height);
+        for (MapListener listener : listeners)
+            listener.cellsChanged(e);
+    }
+
+    private void fireCursorMoved()
+    {
+        if (listeners.isEmpty())
+            return;
+
+        MapEvent e = new MapEvent(this, cursorZ, cursorX, cursorY, 1, 1);
+        for (MapListener listener : listeners)
+            listener.cursorMoved(e);
+    }
+
+    private void fireSelectionChanged()
+    {
+        if (listeners.isEmpty())
+            return;
+
+        MapEvent e = new MapEvent(this, selectionZ, selectionX, selectionY,
+                selectionWidth, selectionHeight);
+        for (MapListener listener : listeners)
+            listener.selectionChanged(e);
+    }
+
+    private void firePaletteChanged()
+    {
+        if (listeners.isEmpty())
+            return;
+
+        MapEvent e = new MapEvent(this, cursorZ, 0, 0, 0, 0);
+        for (MapListener listener : listeners)
+            listener.paletteChanged(e);
+    }
+
+    private void recordChange(int z, int index, int cell)
+    {
+        journalSequence++;
+
+        if (journalLostUntil != 0)
+        {
+            journalLostUntil = journalSequence;
+            return;
+        }
+
+        if (journal.size() >= MAX_JOURNAL_INTS)
+        {
+            journal.clear();
+            journalLostUntil = journalSequence;
+            return;
+        }
+
+        journal.add(z, index, cell);
+    }
+
+    /**
+     * Applies a change read back from a journal, without recording it again
+     */
+    void replayCell(int z, int index, int cell)
+    {
+        int x = index % width;
+        int y = index / width;
+        if (getCell(x, y, z) != cell)
+            getWritableChunk(x, y, z).cells[Chunk.offset(x, y)] = cell;
+    }
+
+    void setCheckpointId(long checkpointId)
+    {
+        this.checkpointId = checkpointId;
+    }
 
-    private Tile[][][] tiles;
+    private static long newCheckpointId()
+    {
+        long id;
+        synchronized (checkpointIds)
+        {
+            do
+                id = checkpointIds.nextLong();
+            while (id == 0);
+        }
+        return id;
+    }
 
-    private boolean writingFloor = false;
-    private boolean writingTopWall = false;
-    private boolean writingBottomWall = false;
-    private boolean writingLeftWall = false;
-    private boolean writingRightWall = false;
-    private boolean writingGlyph = false;
+    /**
+     * Drops journal records up to the given sequence, once they are saved
+     */
+    private void discardJournal(long savedSequence)
+    {
+        this.savedSequence = Math.max(this.savedSequence, savedSequence);
 
-    private int activeFloor = 1;
-    private int activeWall = 1;
-    private int activeGlyph = 1;
-    private String name = "Untitled";
+        long first = journalSequence - journal.size() / 3;
+        long count = Math.min(savedSequence - first, journal.size() / 3);
+        if (count > 0)
+            journal.removeFirst((int)count * 3);
+    }
 
-    public Map(int width, int height, int floors)
+    /**
+     * Records a save to a new checkpoint
+     * @param id checkpoint id of the file
+     * @param checkpointSequence journal sequence the file was written at
+     * @param savedSequence journal sequence saved in all, counting changes
+     *        appended to the checkpoint's journal since
+     */
+    private void checkpointSaved(File savefile, long id, long checkpointSequence,
+                                 long savedSequence)
     {
-        this.width = width;
-        this.height = height;
-        this.floors = floors;
+        checkpointId = id;
+        checkpointFile = savefile;
+        this.checkpointSequence = checkpointSequence;
 
-        cursorX = width/2;
-        cursorY = height/2;
-        cursorZ = 0;
+        // The file now holds fewer changes than an earlier save wrote, and
+        // the records of the rest are gone: only a full save brings them back
+        if (savedSequence < this.savedSequence)
+        {
+            this.savedSequence = savedSequence;
+            journal.clear();
+            journalLostUntil = journalSequence;
+            return;
+        }
+
+        discardJournal(savedSequence);
+        if (journalLostUntil != 0 && journalLostUntil <= savedSequence)
+            journalLostUntil = 0;
+    }
+
+    /**
+     * Whether the map has changes that have not been saved yet
+     */
+    public boolean isModified()
+    {
+        return journalSequence > savedSequence;
+    }
+
+    private boolean canAppendJournal(File savefile)
+    {
+        return checkpointId != 0 && savefile.equals(checkpointFile) &&
+                journalLostUntil == 0 &&
+                MapJournal.length(savefile) + journal.size() * 4L <= JOURNAL_COMPACT_SIZE;
+    }
+
+    /**
+     * Copies one row of a floor into the given array
+     * @param y row to read
+     * @param z floor to read
+     * @param row destination, at least width long
+     */
+    void readRow(int y, int z, int[] row)
+    {
+        int rowOffset = (y & Chunk.MASK) << Chunk.BITS;
+        for (int cx = 0; cx < chunksX; cx++)
+        {
+            int x = cx << Chunk.BITS;
+            int length = Math.min(Chunk.SIZE, width - x);
+            Chunk chunk = getChunk(x, y, z);
+
+            if (chunk == Chunk.EMPTY)
+                Arrays.fill(row, x, x + length, Tile.EMPTY);
+            else
+                System.arraycopy(chunk.cells, rowOffset, row, x, length);
+        }
+    }
+
+    /**
+     * Replaces one row of a floor; chunks only receiving empty cells are not
+     * materialized.
+     * @param y row to write
+     * @param z floor to write
+     * @param row source, at least width long
+     */
+    void writeRow(int y, int z, int[] row)
+    {
+        int rowOffset = (y & Chunk.MASK) << Chunk.BITS;
+        for (int cx = 0; cx < chunksX; cx++)
+        {
+            int x = cx << Chunk.BITS;
+            int length = Math.min(Chunk.SIZE, width - x);
+
+            if (getChunk(x, y, z) == Chunk.EMPTY && isEmpty(row, x, length))
+                continue;
+
+            System.arraycopy(row, x, getWritableChunk(x, y, z).cells, rowOffset, length);
+        }
+    }
+
+    private static boolean isEmpty(int[] row, int start, int length)
+    {
+        for (int i = start; i < start + length; i++)
+            if (row[i] != Tile.EMPTY)
+                return false;
+        return true;
+    }
+
+    public int getFloor(int x, int y, int z)
+    {
+        return Tile.getFloor(getCell(x, y, z));
+    }
+
+    public void setFloor(int x, int y, int z, int floor)
+    {
+        setCell(x, y, z, Tile.setFloor(getCell(x, y, z), floor));
+    }
+
+    public int getHorizWall(int x, int y, int z)
+    {
+        return Tile.getHorizWall(getCell(x, y, z));
+    }
+
+    public void setHorizWall(int x, int y, int z, int horizWall)
+    {
+        setCell(x, y, z, Tile.setHorizWall(getCell(x, y, z), horizWall));
+    }
+
+    public int getVertWall(int x, int y, int z)
+    {
+        return Tile.getVertWall(getCell(x, y, z));
+    }
+
+    public void setVertWall(int x, int y, int z, int vertWall)
+    {
+        setCell(x, y, z, Tile.setVertWall(getCell(x, y, z), vertWall));
+    }
+
+    public int getGlyph(int x, int y, int z)
+    {
+        return Tile.getGlyph(getCell(x, y, z));
+    }
+
+    public void setGlyph(int x, int y, int z, int glyph)
+    {
+        setCell(x, y, z, Tile.setGlyph(getCell(x, y, z), glyph));
+    }
+
+    public int getChunksX()
+    {
+        return chunksX;
+    }
+
+    public int getChunksY()
+    {
+        return chunksY;
+    }
 
-        tiles = new Tile[width][height][floors];
+    /**
+     * Returns a value that changes whenever a cell in the given chunk may
+     * have changed, so views can cache what they draw per chunk. Chunks are
+     * CHUNK_SIZE cells square; never written chunks all share one stamp.
+     * @param cx chunk column
+     * @param cy chunk row
+     * @param z floor
+     * @return the chunk's current stamp
+     */
+    public long getChunkStamp(int cx, int cy, int z)
+    {
+        return getChunkAt(cx, cy, z).stamp;
+    }
 
-        for (int i = 0; i < width; i++)
-            for (int j = 0; j < height; j++)
-                for (int k = 0; k < floors; k++)
-                    tiles[i][j][k] = new Tile();
+    /**
+     * Chunk by chunk coordinates, for bulk readers such as MapFile.
+     * Untouched chunks are returned as Chunk.EMPTY and must not be written.
+     */
+    Chunk getChunkAt(int cx, int cy, int z)
+    {
+        Chunk[] floorChunks = getFloorChunks(z);
+        if (floorChunks == null)
+            return Chunk.EMPTY;
+        return floorChunks[cy * chunksX + cx];
     }
 
-    public Tile getTile(int x, int y, int z)
+    /**
+     * Installs a whole floor's chunk table, for bulk writers such as MapFile
+     */
+    void setFloorChunks(int z, Chunk[] floorChunks)
     {
-        return tiles[x][y][z];
+        chunks[z] = floorChunks;
     }
 
     public int getWidth()
@@ -112,6 +1312,22 @@ public class Map
         return cursorZ;
     }
 
+    /**
+     * Moves the cursor to a cell of the current floor without writing
+     * anything, clamping the position to the map
+     */
+    public void moveCursor(int x, int y)
+    {
+        x = Math.max(0, Math.min(x, width - 1));
+        y = Math.max(0, Math.min(y, height - 1));
+        if (x == cursorX && y == cursorY)
+            return;
+
+        cursorX = x;
+        cursorY = y;
+        fireCursorMoved();
+    }
+
     public String getName()
     {
         return name;
@@ -120,35 +1336,190 @@ public class Map
     private void checkWrite()
     {
         if (writingFloor)
-            tiles[cursorX][cursorY][cursorZ].setFloor(getActiveFloor());
+            setFloor(cursorX, cursorY, cursorZ, getActiveFloor());
 
         // Left and top use the flipped wall where applicable
         if (writingTopWall && cursorY > 0)
         {
             if (getActiveWall() >= 20)
-                tiles[cursorX][cursorY-1][cursorZ].setHorizWall(getActiveWall() + 20);
+                setHorizWall(cursorX, cursorY-1, cursorZ, getActiveWall() + 20);
             else
-                tiles[cursorX][cursorY-1][cursorZ].setHorizWall(getActiveWall());
+                setHorizWall(cursorX, cursorY-1, cursorZ, getActiveWall());
         }
         if (writingLeftWall && cursorX > 0)
         {
             if (getActiveWall() >= 20)
-                tiles[cursorX-1][cursorY][cursorZ].setVertWall(getActiveWall() + 20);
+                setVertWall(cursorX-1, cursorY, cursorZ, getActiveWall() + 20);
             else
-                tiles[cursorX-1][cursorY][cursorZ].setVertWall(getActiveWall());
+                setVertWall(cursorX-1, cursorY, cursorZ, getActiveWall());
         }
 
 
         if (writingBottomWall)
-            tiles[cursorX][cursorY][cursorZ].setHorizWall(getActiveWall());
+            setHorizWall(cursorX, cursorY, cursorZ, getActiveWall());
         if (writingRightWall)
-            tiles[cursorX][cursorY][cursorZ].setVertWall(getActiveWall());
+            setVertWall(cursorX, cursorY, cursorZ, getActiveWall());
         if (writingGlyph)
-            tiles[cursorX][cursorY][cursorZ].setGlyph(getActiveGlyph());
+            setGlyph(cursorX, cursorY, cursorZ, getActiveGlyph());
+    }
+
+    private boolean isWriting()
+    {
+        return writingFloor || writingTopWall || writingBottomWall ||
+               writingLeftWall || writingRightWall || writingGlyph;
+    }
+
+    /**
+     * Closes the action of a stroke in progress, so that its changes can
+     * be undone; drawing on continues as a new stroke
+     */
+    private void endStroke()
+    {
+        if (stroking)
+        {
+            stroking = false;
+            endAction();
+        }
+    }
+
+    /**
+     * Handles a key press on the map view
+     * @throws IOException if the floor the key moves to cannot be read; the
+     *                     cursor then stays on its floor
+     */
+    public void keyPressed(KeyEvent e) throws IOException
+    {
+        if (e.isControlDown() && handleControlKey(e))
+            return;
+        if (e.isAltDown() && handleAltKey(e))
+            return;
+
+        beginAction();
+        try
+        {
+            handleKey(e);
+        }
+        finally
+        {
+            endAction();
+        }
+    }
+
+    /**
+     * Undo: Ctrl+Z, redo: Ctrl+Y or Ctrl+Shift+Z, and the clipboard:
+     * Ctrl+C, Ctrl+X and Ctrl+V
+     * @return false if the key has no Ctrl binding
+     */
+    private boolean handleControlKey(KeyEvent e)
+    {
+        switch (e.getKeyCode())
+        {
+            case KeyEvent.VK_Z:
+                if (e.isShiftDown())
+                    redo();
+                else
+                    undo();
+                return true;
+            case KeyEvent.VK_Y:
+                redo();
+                return true;
+            case KeyEvent.VK_C:
+                copySelection();
+                return true;
+            case KeyEvent.VK_X:
+                endStroke();
+                cutSelection();
+                return true;
+            case KeyEvent.VK_V:
+                endStroke();
+                paste(cursorX, cursorY, cursorZ);
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Alt with the arrows and Page Up/Down moves the selected cells, taking
+     * the cursor along
+     * @return false if the key has no Alt binding
+     */
+    private boolean handleAltKey(KeyEvent e) throws IOException
+    {
+        int dx = 0;
+        int dy = 0;
+        int dz = 0;
+        switch (e.getKeyCode())
+        {
+            case KeyEvent.VK_RIGHT:
+                dx = 1;
+                break;
+            case KeyEvent.VK_LEFT:
+                dx = -1;
+                break;
+            case KeyEvent.VK_UP:
+                dy = -1;
+                break;
+            case KeyEvent.VK_DOWN:
+                dy = 1;
+                break;
+            case KeyEvent.VK_PAGE_UP:
+                dz = -1;
+                break;
+            case KeyEvent.VK_PAGE_DOWN:
+                dz = 1;
+                break;
+            default:
+                return false;
+        }
+
+        endStroke();
+        if (moveSelection(dx, dy, dz))
+        {
+            cursorX = Math.max(0, Math.min(cursorX + dx, width - 1));
+            cursorY = Math.max(0, Math.min(cursorY + dy, height - 1));
+            cursorZ = selectionZ;
+            if (dz != 0)
+                prefetchAdjacentFloors();
+            fireCursorMoved();
+        }
+        return true;
+    }
+
+    /**
+     * Stretches the selection to the cursor after a Shift+arrow move. If the
+     * cursor was on a corner of the selection, the opposite corner stays
+     * put; otherwise a new selection starts where the cursor was.
+     */
+    private void extendSelection(int oldX, int oldY)
+    {
+        int anchorX = oldX;
+        int anchorY = oldY;
+        if (hasSelection() && selectionZ == cursorZ)
+        {
+            int right = selectionX + selectionWidth - 1;
+            int bottom = selectionY + selectionHeight - 1;
+            if ((oldX == selectionX || oldX == right) &&
+                (oldY == selectionY || oldY == bottom))
+            {
+                anchorX = oldX == selectionX ? right : selectionX;
+                anchorY = oldY == selectionY ? bottom : selectionY;
+            }
+        }
+
+        select(Math.min(anchorX, cursorX), Math.min(anchorY, cursorY),
+               Math.abs(cursorX - anchorX) + 1, Math.abs(cursorY - anchorY) + 1,
+               cursorZ);
     }
 
-    public void keyPressed(KeyEvent e)
+    private void handleKey(KeyEvent e) throws IOException
     {
+        int oldX = cursorX;
+        int oldY = cursorY;
+        int oldZ = cursorZ;
+        int oldFloor = activeFloor;
+        int oldWall = activeWall;
+        int oldGlyph = activeGlyph;
+
         switch (e.getKeyCode())
         {
             // Cursor Movement:
@@ -170,11 +1541,19 @@ public class Map
                 break;
             case KeyEvent.VK_PAGE_UP:
                 if (cursorZ > 0)
+                {
+                    loadFloor(cursorZ - 1);
                     cursorZ--;
+                }
+                prefetchAdjacentFloors();
                 break;
             case KeyEvent.VK_PAGE_DOWN:
                 if (cursorZ < (floors - 1))
+                {
+                    loadFloor(cursorZ + 1);
                     cursorZ++;
+                }
+                prefetchAdjacentFloors();
                 break;
 
             // Writing Events
@@ -197,6 +1576,23 @@ public class Map
                 writingGlyph = true;
                 break;
 
+            // Bulk edits with the active floor type
+            case KeyEvent.VK_B:
+                if (e.isShiftDown())
+                    fillSelection(activeFloor);
+                else
+                    floodFill(cursorX, cursorY, cursorZ, activeFloor);
+                break;
+            case KeyEvent.VK_DELETE:
+                deleteSelection();
+                break;
+            case KeyEvent.VK_ESCAPE:
+                clearSelection();
+                break;
+            case KeyEvent.VK_N:
+                replaceAll(cursorZ, getFloor(cursorX, cursorY, cursorZ), activeFloor);
+                break;
+
             // Cursor changes:
             case KeyEvent.VK_E:
                 activeWall++;
@@ -238,6 +1634,20 @@ public class Map
 
         }
 
+        if (cursorX != oldX || cursorY != oldY || cursorZ != oldZ)
+            fireCursorMoved();
+        if (e.isShiftDown() && cursorZ == oldZ && (cursorX != oldX || cursorY != oldY))
+            extendSelection(oldX, oldY);
+        if (activeFloor != oldFloor || activeWall != oldWall || activeGlyph != oldGlyph)
+            firePaletteChanged();
+
+        // Everything drawn while drawing keys are held is one action
+        if (isWriting() && !stroking)
+        {
+            stroking = true;
+            beginAction();
+        }
+
         checkWrite();
     }
 
@@ -265,6 +1675,9 @@ public class Map
                 writingGlyph = false;
                 break;
         }
+
+        if (!isWriting())
+            endStroke();
     }
 
     public int getActiveFloor() {
@@ -293,72 +1706,200 @@ public class Map
             return filename.substring(0, dotpos);
     }
 
-    public void saveMap(File savefile) throws IOException
+    /**
+     * Creates a frozen copy of the map for saving, exporting or analysing on
+     * another thread while this map keeps being edited. The copy shares all
+     * chunks with this map; whichever of the two writes a shared chunk
+     * afterwards copies it first, so taking a snapshot costs O(floors) and
+     * later edits O(chunks touched). Floors of a lazily opened map that are
+     * not loaded yet stay on disk; the copy loads them as it uses them, from
+     * the same loader, typically on the thread it is saved or exported on.
+     * @return a copy with the same cells, cursor and name
+     */
+    public Map snapshot()
+    {
+        Map copy = new Map(width, height, floors);
+        copy.cursorX = cursorX;
+        copy.cursorY = cursorY;
+        copy.cursorZ = cursorZ;
+        copy.name = name;
+        System.arraycopy(chunks, 0, copy.chunks, 0, floors);
+        if (loader != null)
+        {
+            copy.loader = loader;
+            copy.floorsToLoad = floorsToLoad.clone();
+            copy.floorsLeft = floorsLeft;
+        }
+
+        copy.journal = new IntList(journal.size());
+        for (int i = 0; i < journal.size(); i++)
+            copy.journal.add(journal.get(i));
+        copy.journalSequence = journalSequence;
+        copy.journalLostUntil = journalLostUntil;
+        copy.savedSequence = savedSequence;
+        copy.checkpointId = checkpointId;
+        copy.checkpointSequence = checkpointSequence;
+        copy.checkpointFile = checkpointFile;
+
+        // With a new token this map no longer owns anything it now shares
+        owner = new Object();
+
+        return copy;
+    }
+
+    /**
+     * Records that a snapshot of this map was saved, with saveMap or
+     * saveIncremental, so this map's unsaved changes up to the snapshot are
+     * dropped
+     * @param snapshot the saved snapshot, not modified since it was taken
+     * @param savefile file the snapshot was saved to
+     */
+    public void markSaved(Map snapshot, File savefile)
     {
-        BufferedWriter mapWriter = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(savefile))));
+        name = baseName(savefile.getName());
 
-        mapWriter.write(String.format("%d %d %d", width, height, floors));
-        mapWriter.newLine();
+        if (snapshot.checkpointId == checkpointId && savefile.equals(checkpointFile))
+            discardJournal(snapshot.journalSequence);
+        else if (snapshot.checkpointSequence >= checkpointSequence)
+            checkpointSaved(savefile, snapshot.checkpointId,
+                    snapshot.checkpointSequence, snapshot.journalSequence);
 
-        Tile temp = null;
+        // Otherwise the snapshot's checkpoint is older than the current one,
+        // which has superseded whatever it wrote
+    }
 
-        for (int k = 0; k < floors; k++)
+    /**
+     * Saves the map by appending the changes since the last save to the
+     * journal next to the file, which is much cheaper than rewriting the
+     * whole map. Falls back to a full saveMap() if the file was not last
+     * saved by this map, or if the journal has grown large enough to be
+     * compacted into a new checkpoint.
+     * @param savefile file to save to
+     * @throws IOException if writing fails
+     */
+    public void saveIncremental(File savefile) throws IOException
+    {
+        if (!canAppendJournal(savefile) ||
+            !MapJournal.append(savefile, checkpointId, journal.array(), journal.size()))
         {
-            for (int j = 0; j < height; j++)
-            {
-                for (int i = 0; i< width; i++)
-                {
-                    temp = tiles[i][j][k];
-                    mapWriter.write(String.format("%d %d %d %d ",
-                            temp.getFloor(),
-                            temp.getHorizWall(),
-                            temp.getVertWall(),
-                            temp.getGlyph()));
-                }
-                mapWriter.newLine();
-            }
-            mapWriter.newLine();
+            saveMap(savefile);
+            return;
         }
 
-        mapWriter.close();
-
+        discardJournal(journalSequence);
         name = baseName(savefile.getName());
     }
 
+    /**
+     * Saves the map in the current binary format
+     * @param savefile file to write
+     * @throws IOException if writing fails
+     */
+    public void saveMap(File savefile) throws IOException
+    {
+        saveMap(savefile, MapProgress.NONE);
+    }
 
-    public static Map loadMap(File loadfile) throws FileNotFoundException, IOException
+    /**
+     * Saves the map in the current binary format, reporting progress in
+     * floors written
+     * @param savefile file to write
+     * @param progress receiver of progress updates
+     * @throws IOException if writing fails
+     */
+    public void saveMap(File savefile, MapProgress progress) throws IOException
     {
-        Scanner sc = new Scanner(new GZIPInputStream(new FileInputStream(loadfile)));
+        // Floors still on disk may come from the very file being overwritten
+        loadAllFloors();
 
-        int width, height, floors;
+        long id = newCheckpointId();
+        long savedSequence = journalSequence;
+        MapFile.write(this, savefile, id, progress);
+        MapJournal.delete(savefile);
+
+        checkpointSaved(savefile, id, savedSequence, savedSequence);
+        name = baseName(savefile.getName());
+    }
 
-        width = sc.nextInt();
-        height = sc.nextInt();
-        floors = sc.nextInt();
-        sc.nextLine();
+    /**
+     * Saves the map in the original text format, for older versions of
+     * Dungeon Mapper
+     * @param savefile file to write
+     * @throws IOException if writing fails
+     */
+    public void saveLegacyMap(File savefile) throws IOException
+    {
+        saveLegacyMap(savefile, MapProgress.NONE);
+    }
 
-        Map loadingMap = new Map(width, height, floors);
+    /**
+     * Saves the map in the original text format, reporting progress in rows
+     * written
+     * @param savefile file to write
+     * @param progress receiver of progress updates
+     * @throws IOException if writing fails
+     */
+    public void saveLegacyMap(File savefile, MapProgress progress) throws IOException
+    {
+        loadAllFloors();
+        MapFile.writeText(this, savefile, progress);
 
-        Tile temp;
-        for (int k = 0; k < floors; k++)
+        // Text files have no checkpoint id, so they cannot have a journal
+        if (savefile.equals(checkpointFile))
         {
-            for (int j = 0; j < height; j++)
-            {
-                for (int i = 0; i< width; i++)
-                {
-                    temp = loadingMap.tiles[i][j][k];
-
-                    temp.setFloor(sc.nextInt());
-                    temp.setHorizWall(sc.nextInt());
-                    temp.setVertWall(sc.nextInt());
-                    temp.setGlyph(sc.nextInt());
-                }
-                sc.nextLine();
-            }
-            sc.nextLine();
+            MapJournal.delete(savefile);
+            checkpointId = 0;
+            checkpointFile = null;
         }
+        name = baseName(savefile.getName());
+    }
+
+    /**
+     * Reads the format version of a map file from its header, without
+     * loading the map
+     * @param file file to check
+     * @return the binary format version, or TEXT_FILE_VERSION for the
+     *         legacy text format
+     * @throws IOException if the file cannot be read
+     */
+    public static int getFileVersion(File file) throws IOException
+    {
+        return MapFile.readVersion(file);
+    }
+
+    /**
+     * Loads a map, detecting whether it is in the binary or the legacy text
+     * format, and applies any journal left by saveIncremental. Maps in the
+     * current binary format are opened lazily: only the current floor is read
+     * up front and the others as they are used, so the file must stay in
+     * place while the map is open (see loadAllFloors).
+     * @param loadfile file to read
+     * @return the loaded map
+     * @throws IOException if reading fails or the file is not a map
+     */
+    public static Map loadMap(File loadfile) throws FileNotFoundException, IOException
+    {
+        return loadMap(loadfile, MapProgress.NONE);
+    }
+
+    /**
+     * Loads a map as loadMap(File) does, reporting progress in floors or
+     * rows read
+     * @param loadfile file to read
+     * @param progress receiver of progress updates
+     * @return the loaded map
+     * @throws IOException if reading fails, the file is not a map or the
+     *         progress receiver cancelled loading
+     */
+    public static Map loadMap(File loadfile, MapProgress progress) throws FileNotFoundException, IOException
+    {
+        Map loadingMap = MapFile.read(loadfile, progress);
 
-        sc.close();
+        if (loadingMap.checkpointId != 0)
+        {
+            MapJournal.replay(loadfile, loadingMap.checkpointId, loadingMap);
+            loadingMap.checkpointFile = loadfile;
+        }
 
         loadingMap.name = baseName(loadfile.getName());
 
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.map;
+
+import java.util.EventObject;
+
+/**
+ * Describes a change to a map: the floor and rectangle of cells affected
+ */
+public class MapEvent extends EventObject
+{
+    private final int floor;
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+
+    public MapEvent(Map source, int floor, int x, int y, int width, int height)
+    {
+        super(source);
+        this.floor = floor;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    public Map getMap()
+    {
+        return (Map)getSource();
+    }
+
+    public int getFloor()
+    {
+        return floor;
+    }
+
+    public int getX()
+    {
+        return x;
+    }
+
+    public int getY()
+    {
+        return y;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+}
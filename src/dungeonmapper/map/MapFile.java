@@ -0,0 +1,714 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reading and writing of .dungeon files.
+ *
+ * The binary format starts with an uncompressed header: the magic "DMAP", a
+ * little-endian int version and the little-endian width, height and floor
+ * count, then a long checkpoint id, which ties the file to its journal
+ * (see MapJournal), then an index of one (long offset, int length) entry
+ * per floor, then one independently deflated block per floor.
+ * A block holds, for every chunk of the floor in row-major order, a flag byte
+ * (0 for an empty chunk, 1 otherwise) and for non-empty chunks the packed
+ * cells as little-endian ints. Floors without any content have no block and
+ * a length of 0. Since blocks are independent they are compressed and
+ * decompressed in parallel, and a single floor can be read on its own: maps
+ * opened from binary files only load a floor when it is first used.
+ *
+ * Files written by earlier versions are gzipped text (a line with width,
+ * height and floors, then four integers per cell) and are still read.
+ *
+ * All files are written to a temporary file next to the target, synced to
+ * disk and then renamed over the target, so a crash during a save never
+ * leaves a damaged map behind.
+ */
+final class MapFile
+{
+    static final byte[] MAGIC = {'D', 'M', 'A', 'P'};
+    static final int VERSION = 4;
+    static final int TEXT_VERSION = 0;
+
+    private static final int HEADER_SIZE = MAGIC.length + 4 * 4;
+    private static final int CHECKPOINT_SIZE = 8;
+    private static final int INDEX_ENTRY_SIZE = 8 + 4;
+    private static final int CHUNK_BYTES = Chunk.CELLS * 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Bounds on the dimensions read from a file, far beyond any real map, so
+    // that a damaged header fails with an IOException rather than running
+    // out of memory; width * height also stays within the int cell indices
+    private static final int MAX_SIZE = 1 << 15;
+    private static final int MAX_FLOORS = 1 << 12;
+
+    private static final ForkJoinPool pool = new ForkJoinPool();
+
+    /**
+     * Dimensions, checkpoint id and floor block locations of a binary file
+     */
+    static final class Index
+    {
+        final int width;
+        final int height;
+        final int floors;
+        final long checkpointId;
+        final long[] offsets;
+        final int[] lengths;
+
+        Index(int width, int height, int floors, long checkpointId)
+        {
+            this.width = width;
+            this.height = height;
+            this.floors = floors;
+            this.checkpointId = checkpointId;
+            offsets = new long[floors];
+            lengths = new int[floors];
+        }
+    }
+
+    private MapFile()
+    {
+    }
+
+    /**
+     * Writes a map in the current binary format
+     * @param map map to write
+     * @param file destination
+     * @param checkpointId id identifying this version of the file
+     * @param progress receiver of progress in floors
+     * @throws IOException if writing fails
+     */
+    static void write(Map map, File file, long checkpointId, MapProgress progress) throws IOException
+    {
+        int floors = map.getFloors();
+
+        // Compress every floor in parallel, then write the blocks in order
+        List<Future<byte[]>> blocks = new ArrayList<Future<byte[]>>(floors);
+        for (int z = 0; z < floors; z++)
+            blocks.add(pool.submit(new FloorWriter(map, z)));
+
+        Index index = new Index(map.getWidth(), map.getHeight(), floors, checkpointId);
+        File temp = createTempFile(file);
+        boolean written = false;
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try
+        {
+            FileChannel channel = out.getChannel();
+
+            long position = HEADER_SIZE + CHECKPOINT_SIZE + (long)floors * INDEX_ENTRY_SIZE;
+            for (int z = 0; z < floors; z++)
+            {
+                byte[] block = getResult(blocks.get(z));
+                index.offsets[z] = position;
+                index.lengths[z] = block.length;
+                writeFully(channel, ByteBuffer.wrap(block), position);
+                position += block.length;
+
+                progress.update(z + 1, floors);
+            }
+
+            writeFully(channel, encodeIndex(index), 0);
+            channel.force(true);
+            out.close();
+
+            replace(temp, file);
+            written = true;
+        }
+        finally
+        {
+            for (Future<byte[]> block : blocks)
+                block.cancel(false);
+            out.close();
+            if (!written)
+                temp.delete();
+        }
+    }
+
+    /**
+     * Creates the temporary file a save goes to before it replaces the
+     * target; it is placed in the same directory so the rename is atomic
+     */
+    static File createTempFile(File target) throws IOException
+    {
+        File dir = target.getAbsoluteFile().getParentFile();
+        return File.createTempFile("." + target.getName() + ".", ".tmp", dir);
+    }
+
+    /**
+     * Moves a completely written and synced temporary file over the target
+     */
+    static void replace(File temp, File target) throws IOException
+    {
+        Path source = temp.toPath();
+        Path destination = target.toPath();
+        try
+        {
+            Files.move(source, destination, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException ex)
+        {
+            Files.move(source, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        // Make the rename itself durable where the platform allows syncing
+        // a directory
+        try
+        {
+            FileChannel dir = FileChannel.open(destination.toAbsolutePath().getParent(), StandardOpenOption.READ);
+            try
+            {
+                dir.force(true);
+            }
+            finally
+            {
+                dir.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            // Not supported on this platform; the file contents are synced
+        }
+    }
+
+    private static ByteBuffer encodeIndex(Index index)
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + CHECKPOINT_SIZE + index.floors * INDEX_ENTRY_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(index.width);
+        header.putInt(index.height);
+        header.putInt(index.floors);
+        header.putLong(index.checkpointId);
+        for (int z = 0; z < index.floors; z++)
+        {
+            header.putLong(index.offsets[z]);
+            header.putInt(index.lengths[z]);
+        }
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Compresses the chunks of one floor into a standalone block
+     */
+    private static class FloorWriter implements Callable<byte[]>
+    {
+        private final Map map;
+        private final int z;
+
+        FloorWriter(Map map, int z)
+        {
+            this.map = map;
+            this.z = z;
+        }
+
+        public byte[] call() throws IOException
+        {
+            if (isEmptyFloor(map, z))
+                return new byte[0];
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Deflater deflater = new Deflater();
+            try
+            {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new DeflaterOutputStream(bytes, deflater, BUFFER_SIZE), BUFFER_SIZE));
+                writeChunks(map, z, out);
+                out.close();
+            }
+            finally
+            {
+                deflater.end();
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    private static boolean isEmptyFloor(Map map, int z)
+    {
+        for (int cy = 0; cy < map.getChunksY(); cy++)
+            for (int cx = 0; cx < map.getChunksX(); cx++)
+                if (!isEmpty(map.getChunkAt(cx, cy, z)))
+                    return false;
+        return true;
+    }
+
+    private static void writeChunks(Map map, int z, DataOutputStream out) throws IOException
+    {
+        ByteBuffer cellBytes = ByteBuffer.allocate(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        IntBuffer cellInts = cellBytes.asIntBuffer();
+
+        for (int cy = 0; cy < map.getChunksY(); cy++)
+            for (int cx = 0; cx < map.getChunksX(); cx++)
+            {
+                Chunk chunk = map.getChunkAt(cx, cy, z);
+                if (isEmpty(chunk))
+                {
+                    out.writeByte(0);
+                    continue;
+                }
+
+                out.writeByte(1);
+                cellInts.clear();
+                cellInts.put(chunk.cells);
+                out.write(cellBytes.array());
+            }
+    }
+
+    private static boolean isEmpty(Chunk chunk)
+    {
+        if (chunk == Chunk.EMPTY)
+            return true;
+
+        for (int cell : chunk.cells)
+            if (cell != Tile.EMPTY)
+                return false;
+        return true;
+    }
+
+    static Map read(File file, MapProgress progress) throws IOException
+    {
+        int version = readVersion(file);
+
+        if (version == TEXT_VERSION)
+        {
+            InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+            try
+            {
+                return readText(new GZIPInputStream(in, BUFFER_SIZE), progress);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            return readBlocks(file, raf.getChannel());
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the checkpoint id from the header of a file
+     * @return the id, or 0 if the file does not exist or is not a map in
+     *         the current binary format
+     * @throws IOException if the file cannot be read
+     */
+    static long readCheckpointId(File file) throws IOException
+    {
+        if (!file.exists())
+            return 0;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE + CHECKPOINT_SIZE)
+                return 0;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + CHECKPOINT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            header.flip();
+
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION)
+                return 0;
+
+            header.position(HEADER_SIZE);
+            return header.getLong();
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the format version from the header of a file
+     * @return the binary format version, or TEXT_VERSION for files without
+     *         the binary magic
+     * @throws IOException if the file cannot be read
+     */
+    static int readVersion(File file) throws IOException
+    {
+        byte[] magic = new byte[MAGIC.length];
+
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            int read = 0;
+            while (read < magic.length)
+            {
+                int n = in.read(magic, read, magic.length - read);
+                if (n < 0)
+                    break;
+                read += n;
+            }
+
+            if (read != magic.length || !Arrays.equals(magic, MAGIC))
+                return TEXT_VERSION;
+
+            return Integer.reverseBytes(in.readInt());
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the header and floor index of a binary file
+     * @param channel open file
+     * @return the index
+     * @throws IOException if the file is not an indexed map or is damaged
+     */
+    static Index readIndex(FileChannel channel) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        header.flip();
+
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new IOException("Not a binary map file");
+
+        int version = header.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported map file version " + version);
+
+        int width = header.getInt();
+        int height = header.getInt();
+        int floors = header.getInt();
+        checkDimensions(width, height, floors);
+
+        ByteBuffer checkpoint = ByteBuffer.allocate(CHECKPOINT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, checkpoint, HEADER_SIZE);
+        checkpoint.flip();
+        long checkpointId = checkpoint.getLong();
+        long position = HEADER_SIZE + CHECKPOINT_SIZE;
+
+        // The index must fit in the file before its tables are allocated
+        if (channel.size() - position < (long)floors * INDEX_ENTRY_SIZE)
+            throw new EOFException("Map file is truncated");
+
+        Index index = new Index(width, height, floors, checkpointId);
+
+        ByteBuffer entries = ByteBuffer.allocate(index.floors * INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, entries, position);
+        entries.flip();
+
+        long size = channel.size();
+        for (int z = 0; z < index.floors; z++)
+        {
+            index.offsets[z] = entries.getLong();
+            index.lengths[z] = entries.getInt();
+            if (index.offsets[z] < 0 || index.lengths[z] < 0 ||
+                index.offsets[z] + index.lengths[z] > size)
+                throw new IOException("Map file is truncated");
+        }
+
+        return index;
+    }
+
+    /**
+     * Reads a single floor of a binary file, without touching any other
+     * floor
+     * @param channel open file
+     * @param index index read from the same file
+     * @param z floor to read
+     * @return the floor's chunk table, or null if the floor is empty
+     * @throws IOException if reading fails
+     */
+    static Chunk[] readFloor(FileChannel channel, Index index, int z) throws IOException
+    {
+        if (index.lengths[z] == 0)
+            return null;
+
+        ByteBuffer block = ByteBuffer.allocate(index.lengths[z]);
+        readFully(channel, block, index.offsets[z]);
+
+        Chunk[] floorChunks = newFloorChunks(index.width, index.height);
+        Inflater inflater = new Inflater();
+        try
+        {
+            DataInputStream in = new DataInputStream(new InflaterInputStream(
+                    new ByteArrayInputStream(block.array()), inflater, BUFFER_SIZE));
+            readChunks(in, floorChunks);
+        }
+        finally
+        {
+            inflater.end();
+        }
+        return floorChunks;
+    }
+
+    /**
+     * Runs a task on the pool used for compression, for background work such
+     * as prefetching floors
+     */
+    static Future<?> submit(Runnable task)
+    {
+        return pool.submit(task);
+    }
+
+    /**
+     * Opens a binary file lazily: only the index is read, floors are
+     * loaded by the map when first accessed
+     */
+    private static Map readBlocks(File file, FileChannel channel) throws IOException
+    {
+        Index index = readIndex(channel);
+        Map map = new Map(index.width, index.height, index.floors);
+        map.setCheckpointId(index.checkpointId);
+        map.setLoader(new FloorLoader(file, index));
+        return map;
+    }
+
+    private static Chunk[] newFloorChunks(int width, int height)
+    {
+        Chunk[] floorChunks = new Chunk[Chunk.count(width) * Chunk.count(height)];
+        Arrays.fill(floorChunks, Chunk.EMPTY);
+        return floorChunks;
+    }
+
+    private static void readChunks(DataInputStream in, Chunk[] floorChunks) throws IOException
+    {
+        ByteBuffer cellBytes = ByteBuffer.allocate(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        IntBuffer cellInts = cellBytes.asIntBuffer();
+
+        for (int i = 0; i < floorChunks.length; i++)
+        {
+            int flag = in.read();
+            if (flag < 0)
+                throw new EOFException("Map file is truncated");
+            if (flag == 0)
+                continue;
+
+            in.readFully(cellBytes.array());
+            Chunk chunk = new Chunk();
+            cellInts.clear();
+            cellInts.get(chunk.cells);
+            floorChunks[i] = chunk;
+        }
+    }
+
+    private static void checkDimensions(int width, int height, int floors) throws IOException
+    {
+        if (width <= 0 || height <= 0 || floors <= 0 ||
+            width > MAX_SIZE || height > MAX_SIZE || floors > MAX_FLOORS)
+            throw new IOException("Invalid map dimensions " + width + "x" + height + "x" + floors);
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException("Map file is truncated");
+            position += read;
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    /**
+     * Waits for a pool task, passing on any I/O error it threw
+     */
+    private static <T> T getResult(Future<T> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for map data");
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw new IOException(cause);
+        }
+    }
+
+    static void writeText(Map map, File file, MapProgress progress) throws IOException
+    {
+        File temp = createTempFile(file);
+        boolean written = false;
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        try
+        {
+            GZIPOutputStream gzipOut = new GZIPOutputStream(fileOut, BUFFER_SIZE);
+            TextOutput out = new TextOutput(gzipOut);
+            writeText(map, out, progress);
+            out.flush();
+            gzipOut.finish();
+            fileOut.getFD().sync();
+            gzipOut.close();
+
+            replace(temp, file);
+            written = true;
+        }
+        finally
+        {
+            fileOut.close();
+            if (!written)
+                temp.delete();
+        }
+    }
+
+    private static void writeText(Map map, TextOutput out, MapProgress progress) throws IOException
+    {
+        int width = map.getWidth();
+        int height = map.getHeight();
+        int floors = map.getFloors();
+
+        out.writeInt(width);
+        out.writeSpace();
+        out.writeInt(height);
+        out.writeSpace();
+        out.writeInt(floors);
+        out.newLine();
+
+        int[] row = new int[width];
+        int cell;
+
+        for (int k = 0; k < floors; k++)
+        {
+            for (int j = 0; j < height; j++)
+            {
+                map.readRow(j, k, row);
+                for (int i = 0; i< width; i++)
+                {
+                    cell = row[i];
+                    out.writeInt(Tile.getFloor(cell));
+                    out.writeSpace();
+                    out.writeInt(Tile.getHorizWall(cell));
+                    out.writeSpace();
+                    out.writeInt(Tile.getVertWall(cell));
+                    out.writeSpace();
+                    out.writeInt(Tile.getGlyph(cell));
+                    out.writeSpace();
+                }
+                out.newLine();
+
+                progress.update(k * height + j + 1, floors * height);
+            }
+            out.newLine();
+        }
+    }
+
+    private static Map readText(InputStream in, MapProgress progress) throws IOException
+    {
+        TextTokenizer tokens = new TextTokenizer(in);
+
+        int width, height, floors;
+
+        width = tokens.nextInt();
+        height = tokens.nextInt();
+        floors = tokens.nextInt();
+        checkDimensions(width, height, floors);
+
+        Map loadingMap = new Map(width, height, floors);
+
+        // Line breaks and the blank line after each floor are plain
+        // whitespace to the tokenizer
+        int[] row = new int[width];
+        int floor, horizWall, vertWall, glyph;
+        for (int k = 0; k < floors; k++)
+        {
+            for (int j = 0; j < height; j++)
+            {
+                for (int i = 0; i< width; i++)
+                {
+                    floor = tokens.nextInt(0, 0xff);
+                    horizWall = tokens.nextInt(0, 0xff);
+                    vertWall = tokens.nextInt(0, 0xff);
+                    glyph = tokens.nextInt(0, 0xff);
+                    row[i] = Tile.pack(floor, horizWall, vertWall, glyph);
+                }
+                loadingMap.writeRow(j, k, row);
+
+                progress.update(k * height + j + 1, floors * height);
+            }
+        }
+
+        return loadingMap;
+    }
+}
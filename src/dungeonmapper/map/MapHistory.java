@@ -0,0 +1,168 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.map;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Undo and redo history of a map's cell changes.
+ *
+ * Each action is kept as one int array of (cell index, old cell, new cell)
+ * triples in the order the cells were written. A triple with a negative
+ * index, -1 - floor, switches the floor of the triples after it. The
+ * history is bounded by the memory its arrays use: the oldest actions are
+ * dropped to stay within the limit, though the newest action is always
+ * kept.
+ */
+final class MapHistory
+{
+    /** Default memory limit in bytes */
+    static final long DEFAULT_LIMIT = 32L * 1024 * 1024;
+
+    // Newest actions first
+    private final ArrayDeque<int[]> undoActions = new ArrayDeque<int[]>();
+    private final ArrayDeque<int[]> redoActions = new ArrayDeque<int[]>();
+    private long bytes = 0;
+    private long limit = DEFAULT_LIMIT;
+
+    // Changes of the action in progress, or null between actions
+    private IntList current;
+    private int currentFloor;
+
+    /**
+     * Starts collecting changes into a new action
+     */
+    void begin()
+    {
+        current = new IntList();
+        currentFloor = -1;
+    }
+
+    /**
+     * Adds a cell change to the current action, or records it as an action
+     * of its own if there is none
+     */
+    void record(int z, int index, int oldCell, int newCell)
+    {
+        boolean single = current == null;
+        if (single)
+            begin();
+
+        if (z != currentFloor)
+        {
+            current.add(-1 - z, 0, 0);
+            currentFloor = z;
+        }
+        current.add(index, oldCell, newCell);
+
+        if (single)
+            end();
+    }
+
+    /**
+     * Ends the current action. Actions without changes are dropped; any
+     * other action makes the undone actions impossible to redo.
+     */
+    void end()
+    {
+        IntList action = current;
+        current = null;
+        if (action == null || action.isEmpty())
+            return;
+
+        for (int[] redo : redoActions)
+            bytes -= bytes(redo);
+        redoActions.clear();
+
+        int[] changes = action.toArray();
+        undoActions.addFirst(changes);
+        bytes += bytes(changes);
+        trim();
+    }
+
+    boolean canUndo()
+    {
+        return !undoActions.isEmpty();
+    }
+
+    boolean canRedo()
+    {
+        return !redoActions.isEmpty();
+    }
+
+    /**
+     * Moves the newest action to the redo list
+     * @return its changes, to be reverted last to first, or null if there
+     *         is nothing to undo
+     */
+    int[] undo()
+    {
+        int[] changes = undoActions.pollFirst();
+        if (changes != null)
+            redoActions.addFirst(changes);
+        return changes;
+    }
+
+    /**
+     * Moves the most recently undone action back to the undo list
+     * @return its changes, to be applied first to last, or null if there is
+     *         nothing to redo
+     */
+    int[] redo()
+    {
+        int[] changes = redoActions.pollFirst();
+        if (changes != null)
+            undoActions.addFirst(changes);
+        return changes;
+    }
+
+    long getLimit()
+    {
+        return limit;
+    }
+
+    void setLimit(long limit)
+    {
+        this.limit = limit;
+        trim();
+    }
+
+    /**
+     * Drops actions until the history fits its limit: undone actions first,
+     * since they are the least likely to be wanted again, then the oldest
+     */
+    private void trim()
+    {
+        while (bytes > limit && !redoActions.isEmpty())
+            bytes -= bytes(redoActions.pollLast());
+
+        Iterator<int[]> oldest = undoActions.descendingIterator();
+        while (bytes > limit && undoActions.size() > 1)
+        {
+            bytes -= bytes(oldest.next());
+            oldest.remove();
+        }
+    }
+
+    private static long bytes(int[] changes)
+    {
+        return changes.length * 4L;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append-only journal of cell changes kept next to a .dungeon file.
+ *
+ * The journal starts with the magic "DMJL", a little-endian int version and
+ * the long checkpoint id of the map file it belongs to. Records follow as
+ * (floor, cell index, packed cell) little-endian ints, where the cell index
+ * is y * width + x. A journal whose id does not match its map file is stale
+ * and ignored, and a torn record at the end from an interrupted append is
+ * dropped. Every append is synced to disk before it returns.
+ */
+final class MapJournal
+{
+    static final byte[] MAGIC = {'D', 'M', 'J', 'L'};
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = MAGIC.length + 4 + 8;
+    private static final int RECORD_SIZE = 3 * 4;
+    private static final int READ_RECORDS = 4096;
+
+    private MapJournal()
+    {
+    }
+
+    static File journalFile(File mapFile)
+    {
+        return new File(mapFile.getPath() + ".journal");
+    }
+
+    /**
+     * Size of the journal of a map file, or 0 if it has none
+     */
+    static long length(File mapFile)
+    {
+        return journalFile(mapFile).length();
+    }
+
+    /**
+     * Removes the journal of a map file after a new checkpoint. This is best
+     * effort: a journal left behind no longer matches the checkpoint id and
+     * is ignored.
+     */
+    static void delete(File mapFile)
+    {
+        journalFile(mapFile).delete();
+    }
+
+    /**
+     * Appends change records to the journal of a map file, starting a new
+     * journal if there is none
+     * @param mapFile map file the journal belongs to
+     * @param checkpointId checkpoint id of the map file
+     * @param records (floor, cell index, cell) triples
+     * @param count number of ints of records to write
+     * @return false, without writing, if the map file or the existing
+     *         journal belongs to a different checkpoint
+     * @throws IOException if writing fails
+     */
+    static boolean append(File mapFile, long checkpointId, int[] records, int count) throws IOException
+    {
+        // A full save may have replaced the map file since the caller's
+        // checkpoint; records for the old one would never be replayed
+        if (MapFile.readCheckpointId(mapFile) != checkpointId)
+            return false;
+
+        RandomAccessFile out = new RandomAccessFile(journalFile(mapFile), "rw");
+        try
+        {
+            FileChannel channel = out.getChannel();
+            long size = channel.size();
+
+            if (size >= HEADER_SIZE)
+            {
+                if (readCheckpointId(channel) != checkpointId)
+                    return false;
+            }
+            else
+            {
+                MapFile.writeFully(channel, encodeHeader(checkpointId), 0);
+                size = HEADER_SIZE;
+            }
+
+            // Write over any torn record left behind by an interrupted append
+            long end = HEADER_SIZE + (size - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+
+            ByteBuffer bytes = ByteBuffer.allocate(count * 4).order(ByteOrder.LITTLE_ENDIAN);
+            bytes.asIntBuffer().put(records, 0, count);
+            MapFile.writeFully(channel, bytes, end);
+            channel.truncate(end + count * 4L);
+            channel.force(false);
+            return true;
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Applies the journal of a map file to a freshly loaded map
+     * @param mapFile map file the journal belongs to
+     * @param checkpointId checkpoint id read from the map file
+     * @param map map to apply the changes to
+     * @return number of records applied; 0 if there is no matching journal
+     * @throws IOException if reading fails or the journal is damaged
+     */
+    static int replay(File mapFile, long checkpointId, Map map) throws IOException
+    {
+        File file = journalFile(mapFile);
+        if (!file.exists())
+            return 0;
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE || readCheckpointId(channel) != checkpointId)
+                return 0;
+
+            long records = (size - HEADER_SIZE) / RECORD_SIZE;
+            int cellsPerFloor = map.getWidth() * map.getHeight();
+            ByteBuffer bytes = ByteBuffer.allocate(READ_RECORDS * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            IntBuffer ints = bytes.asIntBuffer();
+            long position = HEADER_SIZE;
+
+            for (long done = 0; done < records; )
+            {
+                int batch = (int)Math.min(READ_RECORDS, records - done);
+                bytes.clear();
+                bytes.limit(batch * RECORD_SIZE);
+                MapFile.readFully(channel, bytes, position);
+                position += batch * RECORD_SIZE;
+
+                ints.clear();
+                for (int i = 0; i < batch; i++)
+                {
+                    int z = ints.get();
+                    int index = ints.get();
+                    int cell = ints.get();
+                    if (z < 0 || z >= map.getFloors() || index < 0 || index >= cellsPerFloor)
+                        throw new IOException("Journal " + file + " is damaged");
+                    map.replayCell(z, index, cell);
+                }
+                done += batch;
+            }
+
+            return (int)records;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static ByteBuffer encodeHeader(long checkpointId)
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(checkpointId);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Reads the checkpoint id from a journal header
+     * @return the id, or 0 if the header is not a valid journal header
+     */
+    private static long readCheckpointId(FileChannel channel) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        MapFile.readFully(channel, header, 0);
+        header.flip();
+
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION)
+            return 0;
+        return header.getLong();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.map;
+
+import java.util.EventListener;
+
+/**
+ * Receives notifications of changes to a map, so that views can update
+ * just what changed. Called on the thread that changed the map.
+ */
+public interface MapListener extends EventListener
+{
+    /**
+     * Cells in the event's region were written. Walls are stored in the
+     * cell to their left or above them, so they may also show in the
+     * neighbouring cells.
+     */
+    void cellsChanged(MapEvent e);
+
+    /**
+     * The cursor moved, possibly to another floor; the event's region is
+     * the new cursor cell
+     */
+    void cursorMoved(MapEvent e);
+
+    /**
+     * The active floor, wall or glyph changed; the event has no region
+     */
+    void paletteChanged(MapEvent e);
+
+    /**
+     * The selection changed; the event's region is the new selection, empty
+     * if there is none
+     */
+    void selectionChanged(MapEvent e);
+}
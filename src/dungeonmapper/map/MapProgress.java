@@ -0,0 +1,43 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.map;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Receives progress while a map is loaded or saved.
+ */
+public interface MapProgress
+{
+    /** Progress receiver that ignores all updates */
+    MapProgress NONE = new MapProgress()
+    {
+        public void update(int done, int total)
+        {
+        }
+    };
+
+    /**
+     * Called as work is completed
+     * @param done units of work completed so far
+     * @param total units of work overall
+     * @throws InterruptedIOException to cancel the operation
+     */
+    void update(int done, int total) throws InterruptedIOException;
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.map;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes legacy text maps through one reusable byte buffer, without
+ * formatting a String for every value.
+ */
+final class TextOutput
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator", "\n").getBytes();
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] digits = new byte[11];
+    private int position = 0;
+
+    TextOutput(OutputStream out)
+    {
+        this.out = out;
+    }
+
+    void writeInt(int value) throws IOException
+    {
+        if (position + digits.length > buffer.length)
+            flushBuffer();
+
+        if (value == 0)
+        {
+            buffer[position++] = '0';
+            return;
+        }
+
+        // Negative values never occur in maps, but stay correct anyway
+        long remaining = value;
+        if (remaining < 0)
+        {
+            buffer[position++] = '-';
+            remaining = -remaining;
+        }
+
+        int count = 0;
+        while (remaining > 0)
+        {
+            digits[count++] = (byte)('0' + (remaining % 10));
+            remaining /= 10;
+        }
+        while (count > 0)
+            buffer[position++] = digits[--count];
+    }
+
+    void writeSpace() throws IOException
+    {
+        if (position == buffer.length)
+            flushBuffer();
+        buffer[position++] = ' ';
+    }
+
+    void newLine() throws IOException
+    {
+        if (position + LINE_SEPARATOR.length > buffer.length)
+            flushBuffer();
+        System.arraycopy(LINE_SEPARATOR, 0, buffer, position, LINE_SEPARATOR.length);
+        position += LINE_SEPARATOR.length;
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    void flush() throws IOException
+    {
+        flushBuffer();
+        out.flush();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.map;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads whitespace separated integers straight from a byte stream.
+ *
+ * Used for legacy text maps instead of Scanner: no regular expressions and
+ * no String per token, just large reads into one buffer.
+ */
+final class TextTokenizer
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    // Bytes consumed before the current buffer contents
+    private long bufferOffset = 0;
+    // Offset of the first byte of the last token
+    private long tokenOffset = 0;
+
+    TextTokenizer(InputStream in)
+    {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next integer, skipping any whitespace (including blank
+     * lines) before it
+     * @return the parsed value
+     * @throws EOFException if the stream ends before another integer
+     * @throws IOException if reading fails, a non-numeric token is found or
+     *                     the number does not fit in an int
+     */
+    int nextInt() throws IOException
+    {
+        int c = read();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t')
+            c = read();
+
+        if (c < 0)
+            throw new EOFException("Map file is truncated");
+
+        tokenOffset = getOffset() - 1;
+
+        boolean negative = false;
+        if (c == '-')
+        {
+            negative = true;
+            c = read();
+            if (c < 0)
+                throw new EOFException("Map file is truncated");
+        }
+
+        if (c < '0' || c > '9')
+            throw unexpected(c);
+
+        long limit = negative ? -(long)Integer.MIN_VALUE : Integer.MAX_VALUE;
+        long value = 0;
+        do
+        {
+            value = value * 10 + (c - '0');
+            if (value > limit)
+                throw new IOException("Number out of range at offset " + tokenOffset + " in map file");
+            c = read();
+        } while (c >= '0' && c <= '9');
+
+        if (c >= 0 && c != ' ' && c != '\n' && c != '\r' && c != '\t')
+            throw unexpected(c);
+
+        return (int)(negative ? -value : value);
+    }
+
+    /**
+     * Reads the next integer and checks that it lies in the given range
+     * @param min smallest allowed value
+     * @param max largest allowed value
+     * @return the parsed value
+     * @throws EOFException if the stream ends before another integer
+     * @throws IOException if reading fails, a non-numeric token is found or
+     *                     the value is outside min..max
+     */
+    int nextInt(int min, int max) throws IOException
+    {
+        int value = nextInt();
+        if (value < min || value > max)
+            throw new IOException("Value " + value + " at offset " + tokenOffset +
+                    " in map file is outside " + min + ".." + max);
+        return value;
+    }
+
+    private long getOffset()
+    {
+        return bufferOffset + position;
+    }
+
+    private IOException unexpected(int c)
+    {
+        return new IOException("Unexpected character '" + (char)c + "' at offset " +
+                (getOffset() - 1) + " in map file");
+    }
+
+    private int read() throws IOException
+    {
+        if (position == limit)
+        {
+            bufferOffset += limit;
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0)
+            {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xff;
+    }
+}
@@ -18,52 +18,67 @@
  */
 package dungeonmapper.map;
 
-public class Tile
+/**
+ * Packing helpers for a single map cell.
+ *
+ * Each cell is stored by {@link Map} as one int with a byte per attribute, so
+ * no per-cell objects are needed. Floors, walls and glyphs all fit in a byte.
+ */
+public final class Tile
 {
-    private int floor;
-    private int vertWall;
-    private int horizWall;
-    private int glyph;
+    public static final int EMPTY = 0;
 
-    public Tile()
+    private static final int FLOOR_SHIFT = 0;
+    private static final int HORIZ_WALL_SHIFT = 8;
+    private static final int VERT_WALL_SHIFT = 16;
+    private static final int GLYPH_SHIFT = 24;
+
+    private Tile()
     {
-        floor = 0;
-        vertWall = 0;
-        horizWall = 0;
-        glyph = 0;
     }
 
+    public static int pack(int floor, int horizWall, int vertWall, int glyph)
+    {
+        return (floor & 0xff) << FLOOR_SHIFT
+                | (horizWall & 0xff) << HORIZ_WALL_SHIFT
+                | (vertWall & 0xff) << VERT_WALL_SHIFT
+                | (glyph & 0xff) << GLYPH_SHIFT;
+    }
 
-    public int getFloor() {
-        return floor;
+    public static int getFloor(int cell) {
+        return (cell >>> FLOOR_SHIFT) & 0xff;
     }
 
-    public void setFloor(int floor) {
-        this.floor = floor;
+    public static int setFloor(int cell, int floor) {
+        return replace(cell, FLOOR_SHIFT, floor);
     }
 
-    public int getVertWall() {
-        return vertWall;
+    public static int getHorizWall(int cell) {
+        return (cell >>> HORIZ_WALL_SHIFT) & 0xff;
     }
 
-    public void setVertWall(int vertWall) {
-        this.vertWall = vertWall;
+    public static int setHorizWall(int cell, int horizWall) {
+        return replace(cell, HORIZ_WALL_SHIFT, horizWall);
     }
 
-    public int getHorizWall() {
-        return horizWall;
+    public static int getVertWall(int cell) {
+        return (cell >>> VERT_WALL_SHIFT) & 0xff;
     }
 
-    public void setHorizWall(int horizWall) {
-        this.horizWall = horizWall;
+    public static int setVertWall(int cell, int vertWall) {
+        return replace(cell, VERT_WALL_SHIFT, vertWall);
     }
 
-    public int getGlyph() {
-        return glyph;
+    public static int getGlyph(int cell) {
+        return (cell >>> GLYPH_SHIFT) & 0xff;
     }
 
-    public void setGlyph(int glyph) {
-        this.glyph = glyph;
+    public static int setGlyph(int cell, int glyph) {
+        return replace(cell, GLYPH_SHIFT, glyph);
     }
 
+    private static int replace(int cell, int shift, int value)
+    {
+        return (cell & ~(0xff << shift)) | ((value & 0xff) << shift);
+    }
 }
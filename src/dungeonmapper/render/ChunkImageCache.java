@@ -0,0 +1,168 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.render;
+
+import dungeonmapper.map.Map;
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Least recently used cache of pre-rendered map chunks, so that a repaint
+ * draws one image per chunk instead of three sprites per cell.
+ *
+ * Images are kept per floor and scale and re-rendered only when the chunk's
+ * stamp changes, or the stamp of the chunk to its left or above it, whose
+ * walls overlap into it. The cache is bounded by the memory its images use.
+ */
+class ChunkImageCache
+{
+    /**
+     * Draws one chunk of a floor with its top left corner at the origin
+     */
+    interface ChunkPainter
+    {
+        void paintChunk(Graphics2D g, int cx, int cy, int z);
+    }
+
+    private static final class Key
+    {
+        private final int cx;
+        private final int cy;
+        private final int z;
+        private final int scale;
+
+        Key(int cx, int cy, int z, int scale)
+        {
+            this.cx = cx;
+            this.cy = cy;
+            this.z = z;
+            this.scale = scale;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key)o;
+            return cx == other.cx && cy == other.cy && z == other.z && scale == other.scale;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return ((z * 31 + cy) * 31 + cx) * 31 + scale;
+        }
+    }
+
+    private static final class Entry
+    {
+        BufferedImage image;
+        long stamp;
+        long leftStamp;
+        long topStamp;
+    }
+
+    private final long maxBytes;
+    private long bytes = 0;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+
+    ChunkImageCache(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the image of a chunk, rendering it if it is missing or stale
+     * @param map map the chunk belongs to; the cache must be cleared when
+     *            the map is replaced
+     * @param cx chunk column
+     * @param cy chunk row
+     * @param z floor
+     * @param scale size of a cell in pixels
+     * @param painter renders the chunk if needed
+     * @return an image of Map.CHUNK_SIZE * scale pixels square
+     */
+    BufferedImage get(Map map, int cx, int cy, int z, int scale, ChunkPainter painter)
+    {
+        long stamp = map.getChunkStamp(cx, cy, z);
+        long leftStamp = cx > 0 ? map.getChunkStamp(cx - 1, cy, z) : 0;
+        long topStamp = cy > 0 ? map.getChunkStamp(cx, cy - 1, z) : 0;
+
+        Key key = new Key(cx, cy, z, scale);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.stamp == stamp &&
+            entry.leftStamp == leftStamp && entry.topStamp == topStamp)
+            return entry.image;
+
+        if (entry == null)
+        {
+            int size = Map.CHUNK_SIZE * scale;
+            entry = new Entry();
+            entry.image = SpriteSet.createCompatibleImage(size, size);
+            entries.put(key, entry);
+            bytes += imageBytes(entry.image);
+        }
+
+        Graphics2D g = entry.image.createGraphics();
+        g.setComposite(AlphaComposite.Clear);
+        g.fillRect(0, 0, entry.image.getWidth(), entry.image.getHeight());
+        g.setComposite(AlphaComposite.SrcOver);
+        painter.paintChunk(g, cx, cy, z);
+        g.dispose();
+
+        entry.stamp = stamp;
+        entry.leftStamp = leftStamp;
+        entry.topStamp = topStamp;
+
+        evict(entry);
+        return entry.image;
+    }
+
+    /**
+     * Drops the least recently used images until the cache fits its budget,
+     * never dropping the entry just used
+     */
+    private void evict(Entry keep)
+    {
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext())
+        {
+            Entry eldest = it.next();
+            if (eldest == keep)
+                continue;
+            bytes -= imageBytes(eldest.image);
+            it.remove();
+        }
+    }
+
+    void clear()
+    {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private static long imageBytes(BufferedImage image)
+    {
+        return (long)image.getWidth() * image.getHeight() * 4;
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.render;
+
+import dungeonmapper.map.Map;
+import dungeonmapper.map.Tile;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Draws maps zoomed out below the point where icons are readable. Each cell
+ * becomes a block of its floor's colour, with walls as lines along its edges
+ * and glyphs as dots while there is room for them.
+ *
+ * At one pixel per cell and below, floors are copied from a raster holding
+ * one colour per cell, or from mipmaps of it that average 2x2, 4x4 and 8x8
+ * cells into a pixel. Rasters are built the first time a floor is shown and
+ * then kept up to date as cells change.
+ */
+final class LodRenderer
+{
+    /** Smallest scale at which cells are drawn with icons instead */
+    static final int SPRITE_SCALE = 8;
+
+    /** Coarsest mipmap level, one pixel per 2^MAX_LEVEL cells square */
+    static final int MAX_LEVEL = 3;
+
+    // Floors whose rasters are kept; older ones are dropped
+    private static final int MAX_FLOORS = 4;
+
+    // Mipmaps are updated in tiles of 2^TILE_BITS cells square
+    private static final int TILE_BITS = 6;
+
+    private final Map map;
+    private final int[] floorColors = SpriteSet.getFloorColors();
+    private final int[] wallColors = SpriteSet.getWallColors();
+    private final int[] glyphColors = SpriteSet.getGlyphColors();
+
+    // Raster and mipmaps per floor, [floor][level], null until needed
+    private final int[][][] levels;
+
+    // Tiles of a floor's raster changed since its mipmaps were updated
+    private final int tilesX;
+    private final int tilesY;
+    private final boolean[][] staleTiles;
+    private final boolean[] hasStaleTiles;
+    private final ArrayList<Integer> recentFloors = new ArrayList<Integer>();
+
+    LodRenderer(Map map)
+    {
+        this.map = map;
+        levels = new int[map.getFloors()][][];
+        tilesX = levelSize(map.getWidth(), TILE_BITS);
+        tilesY = levelSize(map.getHeight(), TILE_BITS);
+        staleTiles = new boolean[map.getFloors()][];
+        hasStaleTiles = new boolean[map.getFloors()];
+    }
+
+    /**
+     * Updates the raster of a floor after its cells changed
+     */
+    void cellsChanged(int z, int x, int y, int width, int height)
+    {
+        if (levels[z] == null)
+            return;
+
+        // Walls change how the cell they belong to looks, nothing else
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = Math.min(x + width, map.getWidth());
+        int y1 = Math.min(y + height, map.getHeight());
+        if (x0 >= x1 || y0 >= y1)
+            return;
+
+        int[] raster = levels[z][0];
+        for (int j = y0; j < y1; j++)
+            for (int i = x0; i < x1; i++)
+                raster[j * map.getWidth() + i] = cellColor(map.getCell(i, j, z));
+
+        for (int ty = y0 >> TILE_BITS; ty <= (y1 - 1) >> TILE_BITS; ty++)
+            for (int tx = x0 >> TILE_BITS; tx <= (x1 - 1) >> TILE_BITS; tx++)
+                staleTiles[z][ty * tilesX + tx] = true;
+        hasStaleTiles[z] = true;
+    }
+
+    /**
+     * Renders part of the map area into an RGB raster whose top left pixel
+     * shows the top left visible cell
+     * @param pixels raster to draw into
+     * @param stride width of the raster
+     * @param rows height of the raster
+     * @param z floor
+     * @param scale pixels per cell, from 1 to 4
+     * @param level mipmap level; 0 unless scale is 1
+     * @param scrollX first visible column, a multiple of 2^level
+     * @param scrollY first visible row, a multiple of 2^level
+     * @param area part of the raster to render
+     */
+    void render(int[] pixels, int stride, int rows, int z, int scale,
+            int level, int scrollX, int scrollY, Rectangle area)
+    {
+        int areaX0 = Math.max(area.x, 0);
+        int areaY0 = Math.max(area.y, 0);
+        int areaX1 = Math.min(area.x + area.width, stride);
+        int areaY1 = Math.min(area.y + area.height, rows);
+        if (areaX0 >= areaX1 || areaY0 >= areaY1)
+            return;
+
+        if (scale > 1)
+        {
+            renderBlocks(pixels, stride, areaX0, areaY0, areaX1, areaY1,
+                    z, scale, scrollX, scrollY);
+            return;
+        }
+
+        // Copy rows out of the raster or mipmap
+        int[] source = getLevel(z, level);
+        int sourceWidth = levelSize(map.getWidth(), level);
+        int sourceHeight = levelSize(map.getHeight(), level);
+        int sourceX = (scrollX >> level) + areaX0;
+        int length = Math.min(areaX1 - areaX0, sourceWidth - sourceX);
+        if (length <= 0)
+            return;
+
+        for (int y = areaY0; y < areaY1; y++)
+        {
+            int sourceY = (scrollY >> level) + y;
+            if (sourceY >= sourceHeight)
+                break;
+            System.arraycopy(source, sourceY * sourceWidth + sourceX,
+                    pixels, y * stride + areaX0, length);
+        }
+    }
+
+    /**
+     * Draws every cell as a block of scale pixels square, with a wall on
+     * the right or bottom edge, and at four pixels a glyph dot in the middle
+     */
+    private void renderBlocks(int[] pixels, int stride, int areaX0, int areaY0,
+            int areaX1, int areaY1, int z, int scale, int scrollX, int scrollY)
+    {
+        int cellX0 = scrollX + areaX0 / scale;
+        int cellY0 = scrollY + areaY0 / scale;
+        int cellX1 = Math.min(scrollX + (areaX1 + scale - 1) / scale, map.getWidth());
+        int cellY1 = Math.min(scrollY + (areaY1 + scale - 1) / scale, map.getHeight());
+
+        for (int j = cellY0; j < cellY1; j++)
+            for (int i = cellX0; i < cellX1; i++)
+            {
+                int cell = map.getCell(i, j, z);
+                int px = (i - scrollX) * scale;
+                int py = (j - scrollY) * scale;
+                int x0 = Math.max(px, areaX0);
+                int x1 = Math.min(px + scale, areaX1);
+
+                for (int y = Math.max(py, areaY0); y < Math.min(py + scale, areaY1); y++)
+                    Arrays.fill(pixels, y * stride + x0, y * stride + x1,
+                            floorColors[Tile.getFloor(cell)]);
+
+                int wall = wallColors[Tile.getVertWall(cell)];
+                if (wall != 0)
+                    fillBlock(pixels, stride, px + scale - 1, py, 1, scale,
+                            areaX0, areaY0, areaX1, areaY1, wall);
+
+                wall = wallColors[Tile.getHorizWall(cell)];
+                if (wall != 0)
+                    fillBlock(pixels, stride, px, py + scale - 1, scale, 1,
+                            areaX0, areaY0, areaX1, areaY1, wall);
+
+                int glyph = glyphColors[Tile.getGlyph(cell)];
+                if (glyph != 0 && scale >= 4)
+                    fillBlock(pixels, stride, px + scale / 4, py + scale / 4,
+                            scale / 2, scale / 2, areaX0, areaY0, areaX1, areaY1, glyph);
+            }
+    }
+
+    private static void fillBlock(int[] pixels, int stride, int x, int y,
+            int width, int height, int areaX0, int areaY0, int areaX1,
+            int areaY1, int color)
+    {
+        int x0 = Math.max(x, areaX0);
+        int x1 = Math.min(x + width, areaX1);
+        for (int row = Math.max(y, areaY0); row < Math.min(y + height, areaY1); row++)
+            if (x0 < x1)
+                Arrays.fill(pixels, row * stride + x0, row * stride + x1, color);
+    }
+
+    /**
+     * Colour of a cell at one pixel: its floor, darkened towards the colour
+     * of its walls if it has any
+     */
+    private int cellColor(int cell)
+    {
+        int color = floorColors[Tile.getFloor(cell)];
+        int wall = wallColors[Tile.getHorizWall(cell)];
+        if (wall == 0)
+            wall = wallColors[Tile.getVertWall(cell)];
+        if (wall != 0)
+            color = blend(color, wall);
+        return color;
+    }
+
+    /**
+     * Averages two opaque colours
+     */
+    private static int blend(int a, int b)
+    {
+        return 0xff000000 | ((a & 0xfefefe) >> 1) + ((b & 0xfefefe) >> 1);
+    }
+
+    private static int levelSize(int size, int level)
+    {
+        return (size + (1 << level) - 1) >> level;
+    }
+
+    /**
+     * Gets the raster (level 0) or a mipmap of a floor, building or
+     * updating it as needed
+     */
+    private int[] getLevel(int z, int level)
+    {
+        int width = map.getWidth();
+        int height = map.getHeight();
+
+        if (levels[z] == null)
+        {
+            int[] raster = new int[width * height];
+            for (int j = 0; j < height; j++)
+                for (int i = 0; i < width; i++)
+                    raster[j * width + i] = cellColor(map.getCell(i, j, z));
+
+            levels[z] = new int[MAX_LEVEL + 1][];
+            levels[z][0] = raster;
+            staleTiles[z] = new boolean[tilesX * tilesY];
+            hasStaleTiles[z] = false;
+        }
+        keepFloor(z);
+
+        int[][] floorLevels = levels[z];
+
+        // Bring the mipmaps built so far up to date, tile by tile
+        if (hasStaleTiles[z])
+        {
+            for (int ty = 0; ty < tilesY; ty++)
+                for (int tx = 0; tx < tilesX; tx++)
+                {
+                    if (!staleTiles[z][ty * tilesX + tx])
+                        continue;
+                    staleTiles[z][ty * tilesX + tx] = false;
+
+                    for (int l = 1; l <= MAX_LEVEL && floorLevels[l] != null; l++)
+                    {
+                        int levelWidth = levelSize(width, l);
+                        int levelHeight = levelSize(height, l);
+                        downsample(floorLevels[l - 1], levelSize(width, l - 1),
+                                levelSize(height, l - 1), floorLevels[l], levelWidth,
+                                (tx << TILE_BITS) >> l, (ty << TILE_BITS) >> l,
+                                Math.min(((tx + 1) << TILE_BITS) >> l, levelWidth),
+                                Math.min(((ty + 1) << TILE_BITS) >> l, levelHeight));
+                    }
+                }
+            hasStaleTiles[z] = false;
+        }
+
+        // Then build the missing ones
+        for (int l = 1; l <= level; l++)
+        {
+            if (floorLevels[l] != null)
+                continue;
+
+            int levelWidth = levelSize(width, l);
+            int levelHeight = levelSize(height, l);
+            floorLevels[l] = new int[levelWidth * levelHeight];
+            downsample(floorLevels[l - 1], levelSize(width, l - 1),
+                    levelSize(height, l - 1), floorLevels[l], levelWidth,
+                    0, 0, levelWidth, levelHeight);
+        }
+
+        return floorLevels[level];
+    }
+
+    /**
+     * Averages 2x2 pixels of one level into each pixel of the next, for the
+     * given region of the next level
+     */
+    private static void downsample(int[] source, int sourceWidth, int sourceHeight,
+            int[] target, int targetWidth, int x0, int y0, int x1, int y1)
+    {
+        for (int y = y0; y < y1; y++)
+            for (int x = x0; x < x1; x++)
+            {
+                int red = 0;
+                int green = 0;
+                int blue = 0;
+                int count = 0;
+
+                for (int sy = 2 * y; sy < Math.min(2 * y + 2, sourceHeight); sy++)
+                    for (int sx = 2 * x; sx < Math.min(2 * x + 2, sourceWidth); sx++)
+                    {
+                        int pixel = source[sy * sourceWidth + sx];
+                        red += (pixel >> 16) & 0xff;
+                        green += (pixel >> 8) & 0xff;
+                        blue += pixel & 0xff;
+                        count++;
+                    }
+
+                target[y * targetWidth + x] = 0xff000000 |
+                        (red / count) << 16 | (green / count) << 8 | blue / count;
+            }
+    }
+
+    /**
+     * Marks a floor's rasters as most recently used, dropping those of the
+     * least recently used floor beyond the limit
+     */
+    private void keepFloor(int z)
+    {
+        recentFloors.remove(Integer.valueOf(z));
+        recentFloors.add(z);
+        if (recentFloors.size() > MAX_FLOORS)
+        {
+            int oldest = recentFloors.remove(0);
+            levels[oldest] = null;
+            staleTiles[oldest] = null;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.render;
+
+import dungeonmapper.map.Map;
+import dungeonmapper.map.MapProgress;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exports map floors as PNG images at any size.
+ *
+ * Floors are drawn in horizontal bands of pixel rows with the same sprites
+ * as the map view. Bands are rendered and compressed in parallel and
+ * streamed to the file in order, so memory use depends on the band size
+ * and number of cores rather than on the size of the map.
+ */
+public final class MapExporter
+{
+    private static final Color BACKGROUND = Color.WHITE;
+
+    // Pixels rendered per band; a band is at least one row of pixels, and
+    // may cut through a row of cells
+    private static final int BAND_PIXELS = 2 * 1024 * 1024;
+
+    private MapExporter()
+    {
+    }
+
+    /**
+     * Exports one floor
+     * @param map map to export; it must not be modified during the export,
+     *            pass a snapshot if it may be
+     * @param floor floor to export
+     * @param scale size of a cell in pixels
+     * @param file destination
+     * @param progress receiver of progress in bands
+     * @throws IOException if writing fails
+     */
+    public static void exportFloor(Map map, int floor, int scale, File file, MapProgress progress) throws IOException
+    {
+        export(map, new int[] { floor }, scale, new File[] { file }, progress);
+    }
+
+    /**
+     * Exports every floor to its own file, named after the given file with
+     * "-floorN" inserted before the extension
+     * @param map map to export; it must not be modified during the export
+     * @param scale size of a cell in pixels
+     * @param file base name of the files
+     * @param progress receiver of progress in bands over all floors
+     * @return the files written
+     * @throws IOException if writing fails
+     */
+    public static File[] exportAllFloors(Map map, int scale, File file, MapProgress progress) throws IOException
+    {
+        int floors = map.getFloors();
+        int[] order = new int[floors];
+        File[] files = new File[floors];
+        for (int z = 0; z < floors; z++)
+        {
+            order[z] = z;
+            files[z] = getFloorFile(file, z);
+        }
+        export(map, order, scale, files, progress);
+        return files;
+    }
+
+    /**
+     * Name of the file a floor is written to by exportAllFloors()
+     */
+    public static File getFloorFile(File file, int floor)
+    {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String suffix = "-floor" + (floor + 1);
+        if (dot > 0)
+            name = name.substring(0, dot) + suffix + name.substring(dot);
+        else
+            name = name + suffix;
+        return new File(file.getParentFile(), name);
+    }
+
+    /**
+     * Rows of pixels per band for an image of the given size
+     */
+    static int getBandRows(int width, int height)
+    {
+        return Math.max(1, Math.min(height, BAND_PIXELS / width));
+    }
+
+    private static void export(Map map, int[] floors, int scale, File[] files, MapProgress progress) throws IOException
+    {
+        long width = (long)map.getWidth() * scale;
+        long height = (long)map.getHeight() * scale;
+        if (width > Integer.MAX_VALUE || height > Integer.MAX_VALUE)
+            throw new IOException("Image of " + width + "x" + height + " pixels is too large");
+
+        // Bands are drawn on several threads, so floors of a lazily opened
+        // map are loaded up front rather than on first use
+        map.loadAllFloors();
+
+        SpriteSet sprites = SpriteSet.get(scale);
+        int bandRows = getBandRows((int)width, (int)height);
+        int bands = (int)((height + bandRows - 1) / bandRows);
+        int total = bands * floors.length;
+
+        // Bands of all floors are queued as one stream of jobs, so that
+        // every core stays busy across floor boundaries. Only a window of
+        // jobs is in flight to keep memory bounded.
+        int threads = Runtime.getRuntime().availableProcessors();
+        int window = 2 * threads;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<PngWriter.Block>> pending = new ArrayDeque<Future<PngWriter.Block>>(window);
+        List<File> started = new ArrayList<File>(files.length);
+        OutputStream out = null;
+        boolean written = false;
+        try
+        {
+            int submitted = 0;
+            PngWriter writer = null;
+            for (int done = 0; done < total; done++)
+            {
+                while (submitted < total && pending.size() < window)
+                {
+                    int z = floors[submitted / bands];
+                    int band = submitted % bands;
+                    pending.add(pool.submit(new BandRenderer(map, sprites, z,
+                            band * bandRows, Math.min((band + 1) * bandRows, (int)height))));
+                    submitted++;
+                }
+
+                if (done % bands == 0)
+                {
+                    File file = files[done / bands];
+                    started.add(file);
+                    out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+                    writer = new PngWriter(out, (int)width, (int)height);
+                }
+
+                writer.write(getResult(pending.remove()));
+
+                if (writer.isFinished())
+                {
+                    out.close();
+                    out = null;
+                }
+                progress.update(done + 1, total);
+            }
+            written = true;
+        }
+        finally
+        {
+            pool.shutdownNow();
+            if (out != null)
+                out.close();
+            if (!written)
+                for (File file : started)
+                    file.delete();
+        }
+    }
+
+    /**
+     * Renders and compresses the pixel rows [topY, bottomY) of a floor
+     */
+    private static final class BandRenderer implements Callable<PngWriter.Block>
+    {
+        private final Map map;
+        private final SpriteSet sprites;
+        private final int floor;
+        private final int topY;
+        private final int bottomY;
+
+        BandRenderer(Map map, SpriteSet sprites, int floor, int topY, int bottomY)
+        {
+            this.map = map;
+            this.sprites = sprites;
+            this.floor = floor;
+            this.topY = topY;
+            this.bottomY = bottomY;
+        }
+
+        public PngWriter.Block call()
+        {
+            int scale = sprites.getScale();
+            int width = map.getWidth() * scale;
+            int rows = bottomY - topY;
+
+            // Whole rows of cells are painted, shifted so that the band's
+            // first pixel row lands at the top of the image, which clips
+            // off the rest
+            int cellTop = topY / scale;
+            int cellBottom = (bottomY + scale - 1) / scale;
+
+            BufferedImage image = new BufferedImage(width, rows, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2d = image.createGraphics();
+            g2d.setColor(BACKGROUND);
+            g2d.fillRect(0, 0, width, rows);
+            g2d.translate(0, cellTop * scale - topY);
+            MapPainter.paintCells(g2d, map, sprites, floor,
+                    0, cellTop, map.getWidth(), cellBottom, true);
+            g2d.dispose();
+
+            int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+            return PngWriter.encode(pixels, width, rows, bottomY == map.getHeight() * scale);
+        }
+    }
+
+    /**
+     * Waits for a band, passing on any error it threw
+     */
+    private static <T> T getResult(Future<T> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while exporting");
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.render;
+
+import dungeonmapper.map.Map;
+import dungeonmapper.map.Tile;
+import java.awt.Graphics2D;
+
+/**
+ * Draws map cells with their icons, for the map view and image export
+ */
+final class MapPainter
+{
+    private MapPainter()
+    {
+    }
+
+    /**
+     * Draws the cells in [leftX, rightX) x [topY, bottomY) of a floor with
+     * the top left cell at the origin. Walls are drawn half a cell offset,
+     * so the walls of the row above and the column to the left are included
+     * where they overlap into the area; drawing is clipped to the area.
+     * @param floors false to leave out the floor icons, as for ghost layers
+     */
+    static void paintCells(Graphics2D g2d, Map map, SpriteSet sprites, int floor,
+            int leftX, int topY, int rightX, int bottomY, boolean floors)
+    {
+        int current;
+        int scale = sprites.getScale();
+        int wallX = Math.max(leftX - 1, 0);
+        int wallY = Math.max(topY - 1, 0);
+
+        g2d.clipRect(0, 0, (rightX - leftX) * scale, (bottomY - topY) * scale);
+
+        // Draw the floor & glyphs
+        for (int i=leftX; i<rightX; i++)
+            for (int j=topY; j<bottomY; j++)
+            {
+                current = map.getCell(i, j, floor);
+                if (floors)
+                    sprites.drawFloor(g2d, Tile.getFloor(current),
+                            (i-leftX) * scale, (j-topY) * scale);
+                sprites.drawGlyph(g2d, Tile.getGlyph(current),
+                        (i-leftX) * scale, (j-topY) * scale);
+            }
+
+        // Then draw the walls overtop:
+        for (int i=leftX; i<rightX; i++)
+            for (int j=wallY; j<bottomY; j++)
+            {
+                current = map.getCell(i, j, floor);
+                sprites.drawHorizWall(g2d, Tile.getHorizWall(current),
+                        (i-leftX) * scale, ((j-topY) * scale) + scale/2);
+            }
+
+        for (int i=wallX; i<rightX; i++)
+            for (int j=topY; j<bottomY; j++)
+            {
+                current = map.getCell(i, j, floor);
+                sprites.drawWall(g2d, Tile.getVertWall(current),
+                        ((i-leftX) * scale) + scale/2, (j-topY) * scale);
+            }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.render;
+
+import dungeonmapper.map.Map;
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Draws a map into any Graphics2D or RGB raster, independent of Swing and
+ * usable without a display (java.awt.headless=true).
+ *
+ * Cells are drawn with icons from SPRITE_SCALE pixels per cell up, from a
+ * cache of pre-rendered chunks, optionally with the walls and glyphs of the
+ * floors above and below shown translucently. Smaller scales are drawn as
+ * coloured blocks, and at one pixel per cell from mipmaps that shrink the
+ * map further.
+ *
+ * A renderer keeps caches for one map and is meant for one thread at a
+ * time; use one renderer per thread to render in parallel. The sprites are
+ * shared between all renderers.
+ */
+public final class MapRenderer
+{
+    /** Smallest scale at which cells are drawn with icons */
+    public static final int SPRITE_SCALE = LodRenderer.SPRITE_SCALE;
+
+    /** Coarsest mipmap level, one pixel per 2^MAX_LEVEL cells square */
+    public static final int MAX_LEVEL = LodRenderer.MAX_LEVEL;
+
+    // Largest scale of thumbnails, the largest scale of the map view
+    private static final int MAX_THUMBNAIL_SCALE = 64;
+
+    private static final float GHOST_ALPHA = 0.35f;
+
+    private Map map;
+    private Color background = Color.WHITE;
+    private boolean showGhosts = false;
+
+    // Icons for the scale being rendered
+    private SpriteSet sprites;
+
+    // Pre-rendered chunks of the map, bounded to a share of the heap
+    private final ChunkImageCache chunkCache = new ChunkImageCache(
+            Math.min(64L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4));
+    private final ChunkImageCache.ChunkPainter chunkPainter = new ChunkImageCache.ChunkPainter()
+    {
+        public void paintChunk(Graphics2D g, int cx, int cy, int z)
+        {
+            MapRenderer.this.paintChunk(g, cx, cy, z, true);
+        }
+    };
+
+    // Walls and glyphs of the floors above and below, to line up stairs
+    private final ChunkImageCache ghostCache = new ChunkImageCache(
+            Math.min(32L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8));
+    private final ChunkImageCache.ChunkPainter ghostPainter = new ChunkImageCache.ChunkPainter()
+    {
+        public void paintChunk(Graphics2D g, int cx, int cy, int z)
+        {
+            MapRenderer.this.paintChunk(g, cx, cy, z, false);
+        }
+    };
+
+    // Renderer for zoomed out views, created when first needed
+    private LodRenderer lodRenderer;
+
+    public MapRenderer(Map map)
+    {
+        this.map = map;
+    }
+
+    public Map getMap()
+    {
+        return map;
+    }
+
+    /**
+     * Switches to another map, dropping everything cached for the old one
+     */
+    public void setMap(Map map)
+    {
+        this.map = map;
+        chunkCache.clear();
+        ghostCache.clear();
+        lodRenderer = null;
+    }
+
+    public Color getBackground()
+    {
+        return background;
+    }
+
+    /**
+     * Sets the colour drawn behind the icons
+     */
+    public void setBackground(Color background)
+    {
+        this.background = background;
+    }
+
+    public boolean isShowGhosts()
+    {
+        return showGhosts;
+    }
+
+    /**
+     * Sets whether the walls and glyphs of the floors above and below are
+     * drawn translucently over the floor rendered, for icon scales
+     */
+    public void setShowGhosts(boolean showGhosts)
+    {
+        this.showGhosts = showGhosts;
+    }
+
+    /**
+     * Keeps the zoomed out rasters up to date; must be called for every
+     * change to the map's cells, typically from a MapListener. Cached
+     * chunks check for changes by themselves.
+     */
+    public void cellsChanged(int z, int x, int y, int width, int height)
+    {
+        if (lodRenderer != null)
+            lodRenderer.cellsChanged(z, x, y, width, height);
+    }
+
+    /**
+     * Draws the cells of a floor inside the viewport with its top left
+     * corner at the origin, clipped to the viewport. Scales below
+     * SPRITE_SCALE are drawn as coloured blocks.
+     * @param g graphics to draw into
+     * @param floor floor to draw
+     * @param viewport cells to draw
+     * @param scale size of a cell in pixels
+     */
+    public void render(Graphics2D g, int floor, Rectangle viewport, int scale)
+    {
+        int leftX = Math.max(viewport.x, 0);
+        int topY = Math.max(viewport.y, 0);
+        int rightX = Math.min(viewport.x + viewport.width, map.getWidth());
+        int bottomY = Math.min(viewport.y + viewport.height, map.getHeight());
+        if (leftX >= rightX || topY >= bottomY)
+            return;
+
+        if (scale < SPRITE_SCALE)
+        {
+            BufferedImage image = new BufferedImage((rightX - leftX) * scale,
+                    (bottomY - topY) * scale, BufferedImage.TYPE_INT_RGB);
+            render(image, floor, scale, 0, leftX, topY);
+            g.drawImage(image, (leftX - viewport.x) * scale, (topY - viewport.y) * scale, null);
+            return;
+        }
+
+        sprites = SpriteSet.get(scale);
+
+        Shape oldClip = g.getClip();
+        g.clipRect((leftX - viewport.x) * scale, (topY - viewport.y) * scale,
+                (rightX - leftX) * scale, (bottomY - topY) * scale);
+
+        g.setColor(background);
+        g.fillRect((leftX - viewport.x) * scale, (topY - viewport.y) * scale,
+                (rightX - leftX) * scale, (bottomY - topY) * scale);
+
+        drawChunks(g, chunkCache, chunkPainter, floor, viewport, scale,
+                leftX, topY, rightX, bottomY);
+
+        if (showGhosts)
+        {
+            Composite oldComposite = g.getComposite();
+            g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, GHOST_ALPHA));
+
+            for (int ghost = floor - 1; ghost <= floor + 1; ghost += 2)
+                if (ghost >= 0 && ghost < map.getFloors())
+                    drawChunks(g, ghostCache, ghostPainter, ghost, viewport, scale,
+                            leftX, topY, rightX, bottomY);
+
+            g.setComposite(oldComposite);
+        }
+
+        g.setClip(oldClip);
+    }
+
+    /**
+     * Draws part of a floor below SPRITE_SCALE into an RGB raster whose top
+     * left pixel shows the cell at (scrollX, scrollY)
+     * @param pixels raster to draw into
+     * @param stride width of the raster
+     * @param rows height of the raster
+     * @param floor floor to draw
+     * @param scale pixels per cell, from 1 to SPRITE_SCALE / 2
+     * @param level mipmap level, 2^level cells square per pixel; 0 unless
+     *              scale is 1
+     * @param scrollX first column shown, a multiple of 2^level
+     * @param scrollY first row shown, a multiple of 2^level
+     * @param area part of the raster to draw
+     */
+    public void render(int[] pixels, int stride, int rows, int floor, int scale,
+            int level, int scrollX, int scrollY, Rectangle area)
+    {
+        if (lodRenderer == null)
+            lodRenderer = new LodRenderer(map);
+        lodRenderer.render(pixels, stride, rows, floor, scale, level,
+                scrollX, scrollY, area);
+    }
+
+    /**
+     * Draws part of a floor below SPRITE_SCALE into the whole of an image
+     * of type TYPE_INT_RGB
+     */
+    public void render(BufferedImage image, int floor, int scale, int level,
+            int scrollX, int scrollY)
+    {
+        int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        render(pixels, image.getWidth(), image.getHeight(), floor, scale, level,
+                scrollX, scrollY, new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+    }
+
+    /**
+     * Renders the cells of a floor inside the viewport into a new image
+     * @param scale size of a cell in pixels, 1 or more
+     */
+    public BufferedImage renderImage(int floor, Rectangle viewport, int scale)
+    {
+        BufferedImage image = new BufferedImage(viewport.width * scale,
+                viewport.height * scale, BufferedImage.TYPE_INT_RGB);
+        if (scale < SPRITE_SCALE)
+        {
+            render(image, floor, scale, 0, viewport.x, viewport.y);
+            return image;
+        }
+
+        Graphics2D g = image.createGraphics();
+        g.setColor(background);
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        render(g, floor, viewport, scale);
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Renders a whole floor at the largest power of two scale that fits in
+     * the given size, shrinking it with mipmaps when even one pixel per cell
+     * is too large, as far as MAX_LEVEL allows. Safe to call from several
+     * threads at once.
+     * @param map map to draw
+     * @param floor floor to draw
+     * @param maxSize largest width and height of the image
+     * @return the thumbnail
+     */
+    public static BufferedImage renderThumbnail(Map map, int floor, int maxSize)
+    {
+        int size = Math.max(map.getWidth(), map.getHeight());
+        MapRenderer renderer = new MapRenderer(map);
+
+        if (size <= maxSize)
+        {
+            int scale = 1;
+            while (scale < MAX_THUMBNAIL_SCALE && size * scale * 2 <= maxSize)
+                scale *= 2;
+            return renderer.renderImage(floor,
+                    new Rectangle(0, 0, map.getWidth(), map.getHeight()), scale);
+        }
+
+        int level = 0;
+        while (level < MAX_LEVEL && (size >> level) > maxSize)
+            level++;
+        int width = (map.getWidth() + (1 << level) - 1) >> level;
+        int height = (map.getHeight() + (1 << level) - 1) >> level;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        renderer.render(image, floor, 1, level, 0, 0);
+        return image;
+    }
+
+    /**
+     * Draws the chunks covering [leftX, rightX) x [topY, bottomY) from a
+     * cache, placed relative to the viewport
+     */
+    private void drawChunks(Graphics2D g, ChunkImageCache cache,
+            ChunkImageCache.ChunkPainter painter, int floor, Rectangle viewport,
+            int scale, int leftX, int topY, int rightX, int bottomY)
+    {
+        for (int cy = topY / Map.CHUNK_SIZE; cy <= (bottomY - 1) / Map.CHUNK_SIZE; cy++)
+            for (int cx = leftX / Map.CHUNK_SIZE; cx <= (rightX - 1) / Map.CHUNK_SIZE; cx++)
+            {
+                BufferedImage chunk = cache.get(map, cx, cy, floor, scale, painter);
+                g.drawImage(chunk, (cx * Map.CHUNK_SIZE - viewport.x) * scale,
+                        (cy * Map.CHUNK_SIZE - viewport.y) * scale, null);
+            }
+    }
+
+    /**
+     * Renders one chunk for the chunk caches. Ghost layers of other floors
+     * leave out the floor icons.
+     */
+    private void paintChunk(Graphics2D g, int cx, int cy, int floor, boolean floors)
+    {
+        int leftX = cx * Map.CHUNK_SIZE;
+        int topY = cy * Map.CHUNK_SIZE;
+        MapPainter.paintCells(g, map, sprites, floor, leftX, topY,
+                Math.min(leftX + Map.CHUNK_SIZE, map.getWidth()),
+                Math.min(topY + Map.CHUNK_SIZE, map.getHeight()), floors);
+    }
+}
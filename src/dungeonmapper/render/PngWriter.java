@@ -0,0 +1,246 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.render;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streaming writer for 8 bit RGB PNG images too large to hold in memory.
+ *
+ * The image is written in horizontal blocks of rows. Each block is
+ * compressed independently by encode(), which may run on any thread, into a
+ * raw deflate segment ending on a byte boundary; write() then appends the
+ * segments in order to one zlib stream, so only the blocks in flight are
+ * ever held in memory.
+ */
+final class PngWriter
+{
+    private static final byte[] SIGNATURE = {
+        (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+    private static final int IDAT_SIZE = 256 * 1024;
+    private static final int ADLER_BASE = 65521;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_UP = 2;
+
+    /**
+     * One compressed block of rows
+     */
+    static final class Block
+    {
+        final byte[] data;
+        final int length;
+        final long adler;
+        final long rawLength;
+        final boolean last;
+
+        Block(byte[] data, int length, long adler, long rawLength, boolean last)
+        {
+            this.data = data;
+            this.length = length;
+            this.adler = adler;
+            this.rawLength = rawLength;
+            this.last = last;
+        }
+    }
+
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream idat = new ByteArrayOutputStream(IDAT_SIZE + 64 * 1024);
+    private long adler = 1;
+    private boolean finished = false;
+
+    /**
+     * Writes the PNG header for an image of the given size
+     * @param out destination; it is not closed by the writer
+     */
+    PngWriter(OutputStream out, int width, int height) throws IOException
+    {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+
+        this.out = new DataOutputStream(out);
+
+        this.out.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream data = new DataOutputStream(header);
+        data.writeInt(width);
+        data.writeInt(height);
+        data.writeByte(8); // bit depth
+        data.writeByte(2); // colour type: RGB
+        data.writeByte(0); // compression
+        data.writeByte(0); // filter
+        data.writeByte(0); // interlace
+        writeChunk("IHDR", header.toByteArray(), header.size());
+
+        // zlib header: deflate, 32K window, default compression
+        idat.write(0x78);
+        idat.write(0x9c);
+    }
+
+    /**
+     * Filters and compresses a block of rows. The first row of every block
+     * is left unfiltered so that blocks do not depend on each other.
+     * @param argb pixels of the block, width per row
+     * @param width image width
+     * @param rows number of rows in the block
+     * @param last true for the block containing the bottom row of the image
+     * @return the compressed block, to be passed to write()
+     */
+    static Block encode(int[] argb, int width, int rows, boolean last)
+    {
+        int stride = width * 3 + 1;
+        byte[] raw = new byte[stride * rows];
+
+        for (int j = 0; j < rows; j++)
+        {
+            int in = j * width;
+            int pos = j * stride;
+            raw[pos++] = (byte)(j == 0 ? FILTER_NONE : FILTER_UP);
+            for (int i = 0; i < width; i++)
+            {
+                int p = argb[in + i];
+                raw[pos++] = (byte)(p >> 16);
+                raw[pos++] = (byte)(p >> 8);
+                raw[pos++] = (byte)p;
+            }
+        }
+
+        // Up filter, working from the bottom so the row above is unfiltered
+        for (int j = rows - 1; j > 0; j--)
+        {
+            int pos = j * stride + 1;
+            int above = pos - stride;
+            for (int k = 0; k < stride - 1; k++)
+                raw[pos + k] -= raw[above + k];
+        }
+
+        Adler32 checksum = new Adler32();
+        checksum.update(raw, 0, raw.length);
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try
+        {
+            deflater.setInput(raw);
+            if (last)
+                deflater.finish();
+
+            byte[] buffer = new byte[raw.length / 4 + 1024];
+            int length = 0;
+            while (true)
+            {
+                if (length == buffer.length)
+                {
+                    byte[] larger = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, larger, 0, length);
+                    buffer = larger;
+                }
+                int n = last ? deflater.deflate(buffer, length, buffer.length - length)
+                             : deflater.deflate(buffer, length, buffer.length - length, Deflater.SYNC_FLUSH);
+                length += n;
+                // A flush is complete once it stops filling the buffer
+                if (last ? deflater.finished() : length < buffer.length)
+                    break;
+            }
+            return new Block(buffer, length, checksum.getValue(), raw.length, last);
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Appends a compressed block; blocks must be written top to bottom
+     */
+    void write(Block block) throws IOException
+    {
+        if (finished)
+            throw new IllegalStateException("Image already finished");
+
+        adler = combineAdler(adler, block.adler, block.rawLength);
+        idat.write(block.data, 0, block.length);
+        if (idat.size() >= IDAT_SIZE)
+            flushData();
+        if (block.last)
+        {
+            DataOutputStream trailer = new DataOutputStream(idat);
+            trailer.writeInt((int)adler);
+            flushData();
+            writeChunk("IEND", new byte[0], 0);
+            out.flush();
+            finished = true;
+        }
+    }
+
+    /**
+     * @return true once the last block has been written
+     */
+    boolean isFinished()
+    {
+        return finished;
+    }
+
+    private void flushData() throws IOException
+    {
+        if (idat.size() == 0)
+            return;
+        writeChunk("IDAT", idat.toByteArray(), idat.size());
+        idat.reset();
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException
+    {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int)crc.getValue());
+    }
+
+    /**
+     * Adler-32 of two concatenated byte sequences from the checksums of
+     * each, as zlib's adler32_combine()
+     */
+    private static long combineAdler(long adler1, long adler2, long length2)
+    {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= ((long)ADLER_BASE << 1)) sum2 -= ((long)ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ * Copyright 2010 Ryan Armstrong
+ *
+ * This file is part of Dungeon Mapper
+ *
+ * Dungeon Mapper is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dungeon Mapper is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dungeon Mapper; If not, see <http://www.gnu.org/licenses/>.
+ */
+package dungeonmapper.render;
+
+import dungeonmapper.map.Map;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.Image;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import javax.imageio.ImageIO;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The map icons scaled and rotated for one zoom level.
+ *
+ * The source images are decoded once; the scaled sets are built in parallel
+ * the first time a scale is used and then kept, so zooming back to a scale
+ * costs nothing. The sprites of a set are packed into a single atlas image
+ * in the screen's native format and drawn as sub-rectangles of it.
+ *
+ * Sets are immutable once built and may be drawn from any thread.
+ */
+public final class SpriteSet
+{
+    private static final ForkJoinPool pool = new ForkJoinPool();
+
+    // Location of the sprite list and images, relative to this class
+    private static final String RESOURCES = "resources/";
+
+    // Decoded source icons, loaded on first use
+    private static BufferedImage[] sourceFloors;
+    private static BufferedImage[] sourceWalls;
+    private static BufferedImage[] sourceGlyphs;
+    private static BufferedImage sourceCursor;
+
+    // Average colour of each icon, for drawing maps too small for icons
+    private static int[] floorColors;
+    private static int[] wallColors;
+    private static int[] glyphColors;
+
+    private static final HashMap<Integer, FutureTask<SpriteSet>> sets =
+            new HashMap<Integer, FutureTask<SpriteSet>>();
+
+    // Sprites per atlas row
+    private static final int ATLAS_COLUMNS = 16;
+
+    private final int scale;
+    private BufferedImage atlas;
+
+    // Atlas slot of each sprite, or -1 for unused wall types
+    private final int[] floorSlots = new int[Map.floorTypes];
+    private final int[] wallSlots = new int[60];
+    private final int[] horizWallSlots = new int[60];
+    private final int[] glyphSlots = new int[Map.glyphTypes];
+    private int cursorSlot;
+
+    private SpriteSet(int scale)
+    {
+        this.scale = scale;
+    }
+
+    /**
+     * Gets the size of the sprites in pixels
+     */
+    public int getScale()
+    {
+        return scale;
+    }
+
+    public void drawFloor(Graphics g, int floor, int x, int y)
+    {
+        draw(g, floorSlots[floor], x, y);
+    }
+
+    public void drawWall(Graphics g, int wall, int x, int y)
+    {
+        draw(g, wallSlots[wall], x, y);
+    }
+
+    public void drawHorizWall(Graphics g, int wall, int x, int y)
+    {
+        draw(g, horizWallSlots[wall], x, y);
+    }
+
+    public void drawGlyph(Graphics g, int glyph, int x, int y)
+    {
+        draw(g, glyphSlots[glyph], x, y);
+    }
+
+    public void drawCursor(Graphics g, int x, int y)
+    {
+        draw(g, cursorSlot, x, y);
+    }
+
+    private void draw(Graphics g, int slot, int x, int y)
+    {
+        if (slot < 0)
+            return;
+
+        int sx = (slot % ATLAS_COLUMNS) * scale;
+        int sy = (slot / ATLAS_COLUMNS) * scale;
+        g.drawImage(atlas, x, y, x + scale, y + scale,
+                sx, sy, sx + scale, sy + scale, null);
+    }
+
+    /**
+     * Creates a translucent image in the format of the default screen, so
+     * that drawing it can stay on the accelerated pipeline. Falls back to a
+     * premultiplied ARGB image when there is no screen.
+     */
+    public static BufferedImage createCompatibleImage(int width, int height)
+    {
+        if (GraphicsEnvironment.isHeadless())
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().
+                getDefaultScreenDevice().getDefaultConfiguration().
+                createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+    }
+
+    /**
+     * Returns the sprites for the given scale, building them if this is the
+     * first time the scale is used. If the scale is being pre-warmed in the
+     * background, waits for that to finish instead.
+     */
+    public static SpriteSet get(int scale)
+    {
+        FutureTask<SpriteSet> task;
+        boolean created;
+
+        loadSources();
+        synchronized (sets)
+        {
+            task = sets.get(scale);
+            created = task == null;
+            if (created)
+            {
+                task = newTask(scale);
+                sets.put(scale, task);
+            }
+        }
+
+        if (created)
+            task.run();
+
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Starts building the sprites for the given scales in the background,
+     * skipping scales that are already built or being built
+     */
+    public static void prewarm(int... scales)
+    {
+        loadSources();
+        synchronized (sets)
+        {
+            for (int scale : scales)
+            {
+                if (sets.containsKey(scale))
+                    continue;
+
+                FutureTask<SpriteSet> task = newTask(scale);
+                sets.put(scale, task);
+                pool.execute(task);
+            }
+        }
+    }
+
+    /**
+     * Gets the average colour of each floor icon, as opaque RGB
+     */
+    static synchronized int[] getFloorColors()
+    {
+        loadColors();
+        return floorColors;
+    }
+
+    /**
+     * Gets the average colour of the visible part of each wall icon,
+     * indexed like the walls of a cell. Walls without visible pixels, like
+     * the empty wall, have an alpha of 0.
+     */
+    static synchronized int[] getWallColors()
+    {
+        loadColors();
+        return wallColors;
+    }
+
+    /**
+     * Gets the average colour of the visible part of each glyph icon, with
+     * an alpha of 0 for glyphs without visible pixels
+     */
+    static synchronized int[] getGlyphColors()
+    {
+        loadColors();
+        return glyphColors;
+    }
+
+    private static void loadColors()
+    {
+        if (floorColors != null)
+            return;
+
+        loadSources();
+        int[] floors = new int[sourceFloors.length];
+        int[] walls = new int[60];
+        int[] glyphs = new int[sourceGlyphs.length];
+
+        for (int i = 0; i < floors.length; i++)
+            floors[i] = averageColor(sourceFloors[i]) | 0xff000000;
+        for (int i = 0; i < sourceWalls.length; i++)
+        {
+            if (sourceWalls[i] == null)
+                continue;
+            walls[i] = averageColor(sourceWalls[i]);
+
+            // Flipped walls look the same from afar
+            if (i >= 20)
+                walls[i + 20] = walls[i];
+        }
+        for (int i = 0; i < glyphs.length; i++)
+            glyphs[i] = averageColor(sourceGlyphs[i]);
+
+        floorColors = floors;
+        wallColors = walls;
+        glyphColors = glyphs;
+    }
+
+    /**
+     * Averages the colour of an image, weighted by alpha
+     * @return an opaque colour, or 0 if the image is fully transparent
+     */
+    private static int averageColor(BufferedImage image)
+    {
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        long alpha = 0;
+
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 0; x < image.getWidth(); x++)
+            {
+                int pixel = image.getRGB(x, y);
+                int a = pixel >>> 24;
+                alpha += a;
+                red += ((pixel >> 16) & 0xff) * a;
+                green += ((pixel >> 8) & 0xff) * a;
+                blue += (pixel & 0xff) * a;
+            }
+
+        if (alpha == 0)
+            return 0;
+        return 0xff000000 | (int)(red / alpha) << 16 |
+                (int)(green / alpha) << 8 | (int)(blue / alpha);
+    }
+
+    private static FutureTask<SpriteSet> newTask(final int scale)
+    {
+        return new FutureTask<SpriteSet>(new Callable<SpriteSet>()
+        {
+            public SpriteSet call()
+            {
+                return build(scale);
+            }
+        });
+    }
+
+    /**
+     * Decodes the icons listed in resources/Sprites.properties. Only done
+     * once; needs neither a running application nor a display.
+     */
+    private static synchronized void loadSources()
+    {
+        if (sourceCursor != null)
+            return;
+
+        Properties mapping = new Properties();
+        InputStream in = SpriteSet.class.getResourceAsStream(RESOURCES + "Sprites.properties");
+        if (in == null)
+            throw new IllegalStateException("Missing sprite list " + RESOURCES + "Sprites.properties");
+        try
+        {
+            try
+            {
+                mapping.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Could not read the sprite list", ex);
+        }
+
+        BufferedImage[] floors = new BufferedImage[Map.floorTypes];
+        BufferedImage[] walls = new BufferedImage[20 + Map.flipWallTypes];
+        BufferedImage[] glyphs = new BufferedImage[Map.glyphTypes];
+
+        for (int i = 0; i < floors.length; i++)
+            floors[i] = loadSource(mapping, "Mapping.floor[" + i + "]");
+        for (int i = 0; i < Map.normalWallTypes; i++)
+            walls[i] = loadSource(mapping, "Mapping.wall[" + i + "]");
+        for (int i = 20; i < 20 + Map.flipWallTypes; i++)
+            walls[i] = loadSource(mapping, "Mapping.wall[" + i + "]");
+        for (int i = 0; i < glyphs.length; i++)
+            glyphs[i] = loadSource(mapping, "Mapping.glyph[" + i + "]");
+
+        sourceFloors = floors;
+        sourceWalls = walls;
+        sourceGlyphs = glyphs;
+        sourceCursor = loadSource(mapping, "Mapping.cursor");
+    }
+
+    private static BufferedImage loadSource(Properties mapping, String key)
+    {
+        String path = mapping.getProperty(key);
+        if (path == null)
+            throw new IllegalStateException("No sprite given for " + key);
+
+        URL url = SpriteSet.class.getResource(RESOURCES + path.trim());
+        if (url == null)
+            throw new IllegalStateException("Missing sprite " + path + " for " + key);
+
+        try
+        {
+            BufferedImage image = ImageIO.read(url);
+            if (image == null)
+                throw new IllegalStateException("Unreadable sprite " + path + " for " + key);
+            return toBufferedImage(image);
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Could not read sprite " + path + " for " + key, ex);
+        }
+    }
+
+    private static BufferedImage toBufferedImage(Image original)
+    {
+        // Assume square images
+        int origsize = original.getWidth(null);
+        BufferedImage image = new BufferedImage(origsize, origsize,
+                BufferedImage.TYPE_4BYTE_ABGR);
+
+        Graphics2D tempGraphics = image.createGraphics();
+        tempGraphics.drawImage(original, 0, 0, null);
+        tempGraphics.dispose();
+        return image;
+    }
+
+    private static BufferedImage scaleImage(BufferedImage original, int scale, int degrees)
+    {
+        int origsize = original.getWidth();
+        float multiple = (float)scale/origsize;
+
+        BufferedImage output = new BufferedImage(scale, scale, BufferedImage.TYPE_4BYTE_ABGR);
+
+        // Do the transformation(s)
+        AffineTransform transform = new AffineTransform();
+        if (degrees != 0)
+            transform.rotate(Math.toRadians(degrees), scale / 2, scale /2);
+        if (origsize != scale)
+            transform.scale(multiple, multiple);
+        AffineTransformOp op = new AffineTransformOp(transform, AffineTransformOp.TYPE_BILINEAR);
+
+        op.filter(original, output);
+        return output;
+    }
+
+    /**
+     * Scales every icon for one zoom level, one pool task per icon
+     */
+    private static SpriteSet build(final int scale)
+    {
+        final SpriteSet set = new SpriteSet(scale);
+        BufferedImage[] floors = new BufferedImage[Map.floorTypes];
+        BufferedImage[] walls = new BufferedImage[60];
+        BufferedImage[] horizwalls = new BufferedImage[60];
+        BufferedImage[] glyphs = new BufferedImage[Map.glyphTypes];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        for (int i = 0; i < sourceFloors.length; i++)
+            tasks.add(scaleTask(sourceFloors[i], floors, i, scale, 0));
+
+        // Normal walls, plus flippable walls in both directions
+        for (int i = 0; i < sourceWalls.length; i++)
+        {
+            if (sourceWalls[i] == null)
+                continue;
+
+            tasks.add(scaleTask(sourceWalls[i], walls, i, scale, 0));
+            tasks.add(scaleTask(sourceWalls[i], horizwalls, i, scale, 90));
+            if (i >= 20)
+            {
+                tasks.add(scaleTask(sourceWalls[i], walls, i + 20, scale, 180));
+                tasks.add(scaleTask(sourceWalls[i], horizwalls, i + 20, scale, 270));
+            }
+        }
+
+        for (int i = 0; i < sourceGlyphs.length; i++)
+            tasks.add(scaleTask(sourceGlyphs[i], glyphs, i, scale, 0));
+
+        BufferedImage cursor = scaleImage(sourceCursor, scale, 0);
+
+        try
+        {
+            for (Future<Void> result : pool.invokeAll(tasks))
+                result.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+
+        // Pack everything into the atlas
+        int count = tasks.size() + 1;
+        int rows = (count + ATLAS_COLUMNS - 1) / ATLAS_COLUMNS;
+        set.atlas = createCompatibleImage(ATLAS_COLUMNS * scale, rows * scale);
+
+        Graphics2D g = set.atlas.createGraphics();
+        int slot = 0;
+        slot = pack(g, floors, set.floorSlots, slot, scale);
+        slot = pack(g, walls, set.wallSlots, slot, scale);
+        slot = pack(g, horizwalls, set.horizWallSlots, slot, scale);
+        slot = pack(g, glyphs, set.glyphSlots, slot, scale);
+        set.cursorSlot = slot;
+        g.drawImage(cursor, (slot % ATLAS_COLUMNS) * scale,
+                (slot / ATLAS_COLUMNS) * scale, null);
+        g.dispose();
+
+        return set;
+    }
+
+    /**
+     * Draws the sprites into consecutive atlas slots, recording each
+     * sprite's slot
+     * @return the next free slot
+     */
+    private static int pack(Graphics2D g, BufferedImage[] sprites,
+            int[] slots, int slot, int scale)
+    {
+        for (int i = 0; i < sprites.length; i++)
+        {
+            if (sprites[i] == null)
+            {
+                slots[i] = -1;
+                continue;
+            }
+
+            g.drawImage(sprites[i], (slot % ATLAS_COLUMNS) * scale,
+                    (slot / ATLAS_COLUMNS) * scale, null);
+            slots[i] = slot++;
+        }
+        return slot;
+    }
+
+    private static Callable<Void> scaleTask(final BufferedImage source,
+            final BufferedImage[] target, final int index, final int scale,
+            final int degrees)
+    {
+        return new Callable<Void>()
+        {
+            public Void call()
+            {
+                target[index] = scaleImage(source, scale, degrees);
+                return null;
+            }
+        };
+    }
+}